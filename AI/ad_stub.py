@@ -0,0 +1,62 @@
+"""Stub for the marketing service, for testing without Ollama or FastAPI.
+
+Serves GET /ad in the same JSON shape as marketing_agent.py, cycling through
+a few canned ads, and counts the requests so the broker's single fetch
+stream can be checked:
+
+    python ad_stub.py [port] [delay_seconds]
+"""
+import itertools
+import json
+import sys
+import time
+from http.server import BaseHTTPRequestHandler, ThreadingHTTPServer
+
+ADS = [
+    {"title": "ATM Promotion!", "description": "Make purchases of at least 500 lei and you could win a vacation in Dubai!",
+     "min_purchase": 500, "reward": "vacation in Dubai"},
+    {"title": "Cashback week", "description": "Pay by card this week and get 5% of every purchase back.",
+     "min_purchase": 100, "reward": "5% cashback"},
+    {"title": "Fuel bonus", "description": "Spend 300 lei at partner stations and get a free car wash.",
+     "min_purchase": 300, "reward": "free car wash"},
+    {"title": "Weekend cinema", "description": "Withdraw from any of our ATMs and get two cinema tickets for one.",
+     "min_purchase": 0, "reward": "cinema tickets"},
+]
+
+PORT = int(sys.argv[1]) if len(sys.argv) > 1 else 8001
+DELAY = float(sys.argv[2]) if len(sys.argv) > 2 else 0.0
+
+counter = itertools.count(1)
+ads = itertools.cycle(ADS)
+
+
+class Handler(BaseHTTPRequestHandler):
+
+    def do_GET(self):
+        if self.path == "/health":
+            self.reply({"status": "ok", "provider": "stub"})
+            return
+        if self.path != "/ad":
+            self.send_error(404)
+            return
+        n = next(counter)
+        time.sleep(DELAY)  # the LLM is slow; so is the stub, on request
+        print(f"GET /ad #{n}", flush=True)
+        self.reply(next(ads))
+
+    def reply(self, body):
+        # compact separators, as FastAPI writes them
+        data = json.dumps(body, separators=(",", ":")).encode("utf-8")
+        self.send_response(200)
+        self.send_header("Content-Type", "application/json")
+        self.send_header("Content-Length", str(len(data)))
+        self.end_headers()
+        self.wfile.write(data)
+
+    def log_message(self, fmt, *args):
+        pass
+
+
+if __name__ == "__main__":
+    print(f"Ad stub on port {PORT}")
+    ThreadingHTTPServer(("127.0.0.1", PORT), Handler).serve_forever()
@@ -0,0 +1,111 @@
+package banking.bench;
+
+import banking.persistence.HeapAccountStore;
+import banking.persistence.TransactionJournal;
+import banking.protocol.MessageTypes;
+import banking.protocol.Request;
+import banking.protocol.Response;
+import banking.service.BankService;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The bank operations called directly, without JADE: heap store and a
+ * group-commit journal, so the numbers show the operation cost rather than
+ * the fsync latency.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BankServiceBench {
+
+    private static final String PIN = "1234";
+
+    @Param({"10000"})
+    public int accounts;
+
+    private File dir;
+    private TransactionJournal journal;
+    private BankService service;
+    private String[] users;
+    private String[] tokens;
+    private long created;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        dir = BenchFiles.tempDir("bank-bench");
+        HeapAccountStore store = new HeapAccountStore(new File(dir, "accounts.dat"));
+        store.load();
+        journal = new TransactionJournal(new File(dir, "accounts.journal"), 1024, 5);
+        journal.replay(0, new TransactionJournal.Handler() {
+            @Override
+            public void onCreate(String user, byte[] pinDigest, int balance) {
+            }
+
+            @Override
+            public void onBalance(String user, int balance) {
+            }
+        });
+        service = new BankService(store, journal, TimeUnit.HOURS.toMillis(1));
+
+        users = new String[accounts];
+        tokens = new String[accounts];
+        for (int i = 0; i < accounts; i++) {
+            users[i] = "user" + i;
+            service.execute(new Request(MessageTypes.CREATE, users[i], PIN, 1_000_000));
+            tokens[i] = MessageTypes.TOKEN_PREFIX
+                    + service.execute(new Request(MessageTypes.AUTH, users[i], PIN, 0)).token;
+        }
+    }
+
+    /** Keeps the journal from growing for the whole run. */
+    @Setup(Level.Iteration)
+    public void rotateJournal() throws IOException {
+        journal.deleteBefore(journal.rotate());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        journal.close();
+        BenchFiles.delete(dir);
+    }
+
+    private int pick() {
+        return ThreadLocalRandom.current().nextInt(accounts);
+    }
+
+    @Benchmark
+    public Response create() throws IOException {
+        return service.execute(new Request(MessageTypes.CREATE, "new" + created++, PIN, 100));
+    }
+
+    @Benchmark
+    public Response auth() throws IOException {
+        return service.execute(new Request(MessageTypes.AUTH, users[pick()], PIN, 0));
+    }
+
+    @Benchmark
+    public Response depositWithPin() throws IOException {
+        return service.execute(new Request(MessageTypes.DEPOSIT, users[pick()], PIN, 1));
+    }
+
+    @Benchmark
+    public Response depositWithToken() throws IOException {
+        int i = pick();
+        return service.execute(new Request(MessageTypes.DEPOSIT, users[i], tokens[i], 1));
+    }
+
+    @Benchmark
+    public Response withdrawWithToken() throws IOException {
+        int i = pick();
+        return service.execute(new Request(MessageTypes.WITHDRAW, users[i], tokens[i], 1));
+    }
+}
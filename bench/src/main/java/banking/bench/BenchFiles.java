@@ -0,0 +1,26 @@
+package banking.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+/** Scratch directories for benchmarks that touch the disk. */
+final class BenchFiles {
+
+    private BenchFiles() {
+    }
+
+    static File tempDir(String prefix) throws IOException {
+        return Files.createTempDirectory(prefix).toFile();
+    }
+
+    static void delete(File dir) {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+        dir.delete();
+    }
+}
@@ -0,0 +1,112 @@
+package banking.bench;
+
+import banking.model.Account;
+import banking.persistence.AccountStore;
+import banking.persistence.HeapAccountStore;
+import banking.persistence.MappedAccountStore;
+import banking.util.SecurityUtil;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * What {@code BankAgent.saveData}/{@code loadData} do to the account store.
+ * Every save follows a change to every account; the heap store is opened with
+ * maxDeltas=1, so each save also merges into a full snapshot. Loads read a
+ * store that was closed cleanly.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class PersistenceBench {
+
+    @State(Scope.Benchmark)
+    public abstract static class Data {
+
+        @Param({"1000", "100000", "1000000"})
+        public int accounts;
+
+        @Param({"heap", "mapped"})
+        public String store;
+
+        File dir;
+        long segment;
+
+        AccountStore open() {
+            return "mapped".equals(store)
+                    ? new MappedAccountStore(new File(dir, "accounts.map"))
+                    : new HeapAccountStore(new File(dir, "accounts.dat"), 1);
+        }
+
+        AccountStore populate() throws IOException {
+            dir = BenchFiles.tempDir("bank-persist");
+            AccountStore s = open();
+            s.load();
+
+            // the digest is not what is measured, so every account shares one
+            byte[] digest = SecurityUtil.hashPIN("1234");
+            for (int i = 0; i < accounts; i++) {
+                s.create(new Account("user" + i, digest, i));
+            }
+            s.capture(++segment).write();
+            return s;
+        }
+    }
+
+    public static class Saved extends Data {
+        AccountStore live;
+
+        @Setup(Level.Trial)
+        public void setup() throws IOException {
+            live = populate();
+        }
+
+        @Setup(Level.Invocation)
+        public void touchAll() {
+            live.forEach(acc -> {
+                acc.setBalance(acc.getBalance() + 1);
+                live.update(acc);
+            });
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException {
+            live.close();
+            BenchFiles.delete(dir);
+        }
+    }
+
+    public static class OnDisk extends Data {
+
+        @Setup(Level.Trial)
+        public void setup() throws IOException {
+            populate().close();
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            BenchFiles.delete(dir);
+        }
+    }
+
+    @Benchmark
+    public void saveData(Saved s) throws IOException {
+        s.live.capture(++s.segment).write();
+    }
+
+    @Benchmark
+    public int loadData(OnDisk d) throws IOException {
+        AccountStore loaded = d.open();
+        try {
+            loaded.load();
+            return loaded.size();
+        } finally {
+            loaded.close();
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package banking.bench;
+
+import banking.protocol.BinaryCodec;
+import banking.protocol.MessageTypes;
+import banking.protocol.Request;
+import banking.protocol.Response;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/** Request and response encoding in both wire formats. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ProtocolBench {
+
+    private final String requestText = "DEPOSIT;alice;1234;250";
+    private final Request request = Request.parseText(requestText);
+    private final byte[] requestBinary = BinaryCodec.encode(request);
+
+    private final Response response = Response.of(MessageTypes.DEPOSIT_OK, 1250);
+    private final String responseText = response.toText();
+    private final byte[] responseBinary = BinaryCodec.encode(response);
+
+    @Benchmark
+    public Request parseRequestText() {
+        return Request.parseText(requestText);
+    }
+
+    @Benchmark
+    public String requestToText() {
+        return request.toText();
+    }
+
+    @Benchmark
+    public Request decodeRequestBinary() {
+        return BinaryCodec.decodeRequest(requestBinary);
+    }
+
+    @Benchmark
+    public byte[] encodeRequestBinary() {
+        return BinaryCodec.encode(request);
+    }
+
+    @Benchmark
+    public Response parseResponseText() {
+        return Response.parseText(responseText);
+    }
+
+    @Benchmark
+    public Response decodeResponseBinary() {
+        return BinaryCodec.decodeResponse(responseBinary);
+    }
+}
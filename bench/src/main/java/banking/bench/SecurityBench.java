@@ -0,0 +1,42 @@
+package banking.bench;
+
+import banking.util.SecurityUtil;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.security.MessageDigest;
+import java.util.concurrent.TimeUnit;
+
+/** PIN hashing and verification; {@code legacyHexHash} is the original implementation, kept as a baseline. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SecurityBench {
+
+    private final String pin = "1234";
+    private final byte[] digest = SecurityUtil.hashPIN("1234");
+
+    @Benchmark
+    public byte[] hashPIN() {
+        return SecurityUtil.hashPIN(pin);
+    }
+
+    @Benchmark
+    public boolean verifyPIN() {
+        return SecurityUtil.verifyPIN(pin, digest);
+    }
+
+    @Benchmark
+    public String legacyHexHash() throws Exception {
+        MessageDigest md = MessageDigest.getInstance("SHA-256");
+        byte[] hashBytes = md.digest(pin.getBytes("UTF-8"));
+        StringBuilder sb = new StringBuilder();
+        for (byte b : hashBytes) {
+            sb.append(String.format("%02x", b));
+        }
+        return sb.toString();
+    }
+}
@@ -15,10 +15,36 @@ public class MainContainer {
         AgentContainer container = rt.createMainContainer(p);
 
         try {
-            container.createNewAgent("bank", "banking.agents.BankAgent", null).start();
+            // colectorul de metrici pornește primul, ca să primească rapoartele tuturor agenților
+            container.createNewAgent("metrics", "banking.agents.MetricsAgent", null).start();
+
+            int shards = Integer.getInteger("bank.shards", 1);
+            if (shards == 1) {
+                container.createNewAgent("bank", "banking.agents.BankAgent", null).start();
+            } else {
+                for (int i = 0; i < shards; i++) {
+                    container.createNewAgent("bank" + i, "banking.agents.BankAgent",
+                            new Object[]{i, shards}).start();
+                }
+            }
+            // replici de citire pentru fiecare shard, alimentate din jurnalul shard-ului
+            int replicas = Integer.getInteger("bank.replicas", 0);
+            for (int i = 0; i < shards; i++) {
+                for (int r = 0; r < replicas; r++) {
+                    container.createNewAgent((shards == 1 ? "bank" : "bank" + i) + "-replica" + r,
+                            "banking.agents.ReplicaAgent", new Object[]{i, shards}).start();
+                }
+            }
+            container.createNewAgent("adbroker", "banking.agents.AdBrokerAgent", null).start();
             container.createNewAgent("atm1", "banking.agents.ATMAgent", null).start();
             container.createNewAgent("atm2", "banking.agents.ATMAgent", null).start();
             container.createNewAgent("user", "banking.agents.UserAgent", null).start();
+
+            // generatoare de încărcare fără interfață grafică
+            int generators = Integer.getInteger("load.generators", 0);
+            for (int i = 0; i < generators; i++) {
+                container.createNewAgent("load" + i, "banking.agents.LoadGeneratorAgent", null).start();
+            }
            // container.createNewAgent("shutdown", "banking.agents.ShutdownAgent", null).start();
         } catch (StaleProxyException e) {
             e.printStackTrace();
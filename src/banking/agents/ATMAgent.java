@@ -3,21 +3,99 @@ package banking.agents;
 import jade.core.Agent;
 import jade.core.AID;
 import jade.lang.acl.ACLMessage;
+import jade.lang.acl.UnreadableException;
 import jade.core.behaviours.CyclicBehaviour;
+import jade.core.behaviours.TickerBehaviour;
 import jade.domain.DFService;
 import jade.domain.FIPAAgentManagement.*;
 
+import banking.metrics.AgentMetrics;
+import banking.metrics.MetricsReporter;
+import banking.metrics.Tracing;
+import banking.persistence.StandInQueue;
+import banking.protocol.AdUpdate;
+import banking.protocol.Batch;
+import banking.protocol.MessageTypes;
+import banking.protocol.Request;
+import banking.protocol.Response;
+import banking.protocol.StandIn;
+import banking.protocol.Statement;
+import banking.protocol.Wire;
+import banking.util.CircuitBreaker;
+import banking.util.ServiceDirectory;
+
+import java.io.File;
 import java.io.IOException;
-import java.net.HttpURLConnection;
-import java.net.URL;
-import java.util.Scanner;
+import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
 
 public class ATMAgent extends Agent {
 
-    private AID bankAID;
+    private static final long TIMEOUT_SWEEP_MS = 100;
+
+    /** Copia locală a înregistrărilor din DF, actualizată printr-o subscripție. */
+    private ServiceDirectory directory;
+    private BankRouter bank;
+
+    /** Cereri trimise la bancă și încă fără răspuns, după conversation id. Folosit doar pe firul agentului. */
+    private final Map<String, PendingRequest> pending = new HashMap<>();
+    private long conversationSeq;
+    /** Prefixul id-urilor de cerere; include momentul pornirii, ca id-urile să nu se repete după o repornire. */
+    private String requestIdPrefix;
+    private final long bankTimeoutMs = Long.getLong("atm.bankTimeoutMs", 5000);
+    /** După cât timp fără răspuns cererea este retrimisă cu același id; 0 dezactivează reîncercările. */
+    private final long bankRetryMs = Long.getLong("atm.bankRetryMs", 0);
+    /** Câte cereri pot aștepta răspunsul băncii; peste limită ATM-ul răspunde imediat BANK_BUSY. */
+    private final int maxPending = Integer.getInteger("atm.maxPending", 10000);
+    /** Cererile care au stat mai mult de atât în coada ATM-ului sunt refuzate cu ATM_BUSY; 0 dezactivează. */
+    private final long maxQueueWaitMs = Long.getLong("atm.maxQueueWaitMs", 1000);
+    /** Un breaker per shard, deschis când shard-ul răspunde BUSY. */
+    private final Map<AID, CircuitBreaker> breakers = new HashMap<>();
+    private final long breakerMaxOpenMs = Long.getLong("atm.breaker.maxOpenMs", 5000);
+    /** Câte cereri către același shard pot pleca într-un singur mesaj; 1 dezactivează loturile. */
+    private final int batchMaxSize = Integer.getInteger("atm.batch.maxSize", 1);
+    /** Cât poate aștepta în lot cea mai veche cerere, în nanosecunde. */
+    private final long batchMaxDelayNanos = Long.getLong("atm.batch.maxDelayUs", 500) * 1000;
+    /** Lotul în curs de formare pentru fiecare shard. */
+    private final Map<AID, OpenBatch> openBatches = new HashMap<>();
+    /** Cererile către bancă folosesc formatul binar; textul rămâne varianta de rezervă. */
+    private final boolean binaryProtocol =
+            Boolean.parseBoolean(System.getProperty("atm.binaryProtocol", "true"));
+
+    // Reclamele vin de la AdBroker sau, dacă nu există, sunt preluate în fundal; GET_AD răspunde din memorie
+    private AID adBroker;
+    private final AdPool ads = new AdPool(
+            System.getProperty("atm.ads.url", "http://localhost:8001/ad"),
+            Integer.getInteger("atm.ads.poolSize", 8),
+            Long.getLong("atm.ads.ttlMs", 300000),
+            Long.getLong("atm.ads.refreshMs", 30000),
+            "💰 Promoție ATM!\nFă cumpărături de minim 500 lei și poți câștiga o vacanță în Dubai!");
+
+    // Stand-in: tranzacțiile mici sunt aprobate local, păstrate pe disc și trimise băncii în loturi
+    private StandInAuthorizer standIn;
+    private StandInQueue standInQueue;
+    private final int standInBatchSize = Integer.getInteger("atm.standin.batchSize", 100);
+    /** Loturile trimise și încă fără răspuns, după conversation id; cel mult unul per shard. */
+    private final Map<String, StandInBatch> standInBatches = new HashMap<>();
+
+    private AgentMetrics metrics;
 
     protected void setup() {
         System.out.println("ATM started: " + getLocalName());
+        requestIdPrefix = getLocalName() + "-" + Long.toString(System.currentTimeMillis(), 36) + "-";
+
+        // Metrici: timpul dus-întors până la bancă, cereri în așteptare, coada de mesaje
+        metrics = new AgentMetrics(getLocalName());
+        metrics.gauge("pending", pending::size);
+        metrics.gauge("queue.acl", this::getCurQueueSize);
+        metrics.register();
+        ads.setMetrics(metrics);
+        directory = new ServiceDirectory(this);
+        addBehaviour(new MetricsReporter(this, metrics, directory));
+
+        if (Boolean.getBoolean("atm.standin")) {
+            openStandIn();
+        }
 
         // Înregistrare DF
         DFAgentDescription dfd = new DFAgentDescription();
@@ -33,6 +111,9 @@ public class ATMAgent extends Agent {
         } catch (Exception e) {
             e.printStackTrace();
         }
+        directory.subscribe();
+
+        subscribeToAds();
 
         // Delay pentru a permite Bank să se înregistreze
         addBehaviour(new jade.core.behaviours.OneShotBehaviour() {
@@ -40,119 +121,606 @@ public class ATMAgent extends Agent {
                 try { Thread.sleep(500); } catch (InterruptedException e) {}
                 findBank();
 
-                if (bankAID != null) {
+                if (bank.shardCount() > 0) {
                     System.out.println("ATM ready to forward messages to Bank");
 
-                    // Ascultă mesaje de la user
+                    // Ascultă mesaje de la user și răspunsuri de la bancă
                     addBehaviour(new CyclicBehaviour() {
                         public void action() {
                             ACLMessage msg = receive();
                             if (msg != null && msg.getContent() != null) {
-                                if ("SHUTDOWN".equals(msg.getContent())) {
-                                    System.out.println(getLocalName() + " shutting down");
-                                    doDelete();
-                                    return;
-                                }
-                             // În comportamentul CyclicBehaviour al ATM-ului
-                                if (msg.getContent() != null && msg.getContent().equals("GET_AD")) {
-                                    String adText = fetchAdText(); // metoda de mai sus
-                                    ACLMessage reply = msg.createReply();
-                                    reply.setContent(adText);
-                                    send(reply);
-                                }
-                                
-                                if (!msg.getSender().equals(bankAID)) {
-                                    // Mesaj de la User
-                                    System.out.println("ATM received from user: " + msg.getContent());
-                                    ACLMessage replyFromBank = forwardToBankAndWaitReply(msg);
-                                    if (replyFromBank != null) {
-                                        forwardToUser(replyFromBank, msg);
-                                    }
-                                }
-                            } else {
+                                handleMessage(msg);
+                            } else if (msg == null) {
+                                // coada e goală: loturile începute pleacă acum, nu mai are ce să se adune în ele
+                                flushBatches();
                                 block();
                             }
                         }
                     });
+
+                    // Cererile la care banca nu a răspuns la timp
+                    addBehaviour(new TickerBehaviour(myAgent, TIMEOUT_SWEEP_MS) {
+                        protected void onTick() {
+                            expirePending();
+                        }
+                    });
+
                 }
             }
         });
     }
 
-    private void findBank() {
-        DFAgentDescription template = new DFAgentDescription();
-        ServiceDescription sd = new ServiceDescription();
-        sd.setType("bank-service");
-        template.addServices(sd);
+    @Override
+    protected void takeDown() {
+        ads.close();
+        metrics.unregister();
+        directory.close();
+        if (standInQueue != null) {
+            try {
+                standInQueue.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        if (adBroker != null) {
+            ACLMessage cancel = new ACLMessage(ACLMessage.CANCEL);
+            cancel.addReceiver(adBroker);
+            cancel.setConversationId(AdBrokerAgent.CONVERSATION);
+            send(cancel);
+        }
+    }
+
+    /* ---------------- RECLAME ---------------- */
 
+    private void subscribeToAds() {
+        adBroker = directory.find(AdBrokerAgent.SERVICE_TYPE);
+        if (adBroker != null) {
+            sendAdSubscription();
+            return;
+        }
+
+        // fără broker, ATM-ul își preia singur reclamele
+        ads.start(getLocalName());
+    }
+
+    private void sendAdSubscription() {
+        ACLMessage sub = new ACLMessage(ACLMessage.SUBSCRIBE);
+        sub.addReceiver(adBroker);
+        sub.setConversationId(AdBrokerAgent.CONVERSATION);
+        sub.setContent(AdBrokerAgent.SUBSCRIBE + ";" + ads.version());
+        send(sub);
+    }
+
+    private void onAdUpdate(ACLMessage msg) {
+        AdUpdate update;
         try {
-            DFAgentDescription[] result = DFService.search(this, template);
-            if (result.length > 0) {
-                bankAID = result[0].getName();
-                System.out.println("ATM found bank: " + bankAID.getLocalName());
-            } else {
-                System.out.println("ATM did NOT find bank!");
-            }
-        } catch (Exception e) {
+            update = (AdUpdate) msg.getContentObject();
+        } catch (UnreadableException e) {
             e.printStackTrace();
+            return;
+        }
+
+        // un broker pornit după ATM ne-a găsit în DF: nu mai preluăm singuri
+        if (adBroker == null) {
+            adBroker = msg.getSender();
+            ads.close();
+        }
+        if (!ads.apply(update)) {
+            sendAdSubscription();
+        }
+    }
+
+    private void handleMessage(ACLMessage msg) {
+        if (directory.handle(msg)) {
+            return;
+        }
+        if ("SHUTDOWN".equals(msg.getContent())) {
+            System.out.println(getLocalName() + " shutting down");
+            doDelete();
+            return;
+        }
+
+        if (msg.getPerformative() == ACLMessage.INFORM
+                && AdBrokerAgent.CONVERSATION.equals(msg.getConversationId())) {
+            onAdUpdate(msg);
+            return;
+        }
+
+        if (msg.getContent().equals("GET_AD")) {
+            String adText = ads.next();
+            ACLMessage reply = msg.createReply();
+            reply.setContent(adText);
+            send(reply);
+            return;
+        }
+
+        if (StandIn.ONTOLOGY.equals(msg.getOntology())) {
+            onStandInReply(msg);
+        } else if (Batch.ONTOLOGY.equals(msg.getOntology())) {
+            onBatchReply(msg);
+        } else if (Statement.ONTOLOGY.equals(msg.getOntology())) {
+            onStatementChunk(msg);
+        } else if (bank.isBank(msg.getSender())) {
+            onBankReply(msg);
+        } else {
+            // Mesaj de la User
+            System.out.println("ATM received from user: " + msg.getContent());
+            forwardToBank(msg);
         }
     }
 
-    private ACLMessage forwardToBankAndWaitReply(ACLMessage userMsg) {
+    private void findBank() {
+        bank = new BankRouter(directory);
+        if (bank.refresh()) {
+            System.out.println("ATM found bank: " + bank.shardCount() + " shard(s), "
+                    + bank.refreshReplicas() + " read replica(s)");
+        } else if (bank.shardCount() > 0) {
+            System.out.println("ATM found only part of the bank shards");
+        } else {
+            System.out.println("ATM did NOT find bank!");
+        }
+    }
+
+    /* ---------------- PIPELINED FORWARDING ---------------- */
+
+    /**
+     * Sends the request to the owning shard without waiting. The request is
+     * tagged with a conversation id and kept in {@link #pending} until the
+     * matching reply or its timeout, so any number of sessions can be in flight.
+     * While the shard answers BUSY its circuit breaker holds new requests back
+     * until it closes, or rejects them with BANK_BUSY if they would time out first.
+     */
+    private void forwardToBank(ACLMessage userMsg) {
+        long receivedAt = System.nanoTime();
+        Tracing.inbound(userMsg, getLocalName(), "atm.inbound", Tracing.micros(receivedAt));
+
+        // ATM-ul însuși e în urmă: utilizatorul primește imediat un refuz în loc de un timeout
+        if (maxQueueWaitMs > 0 && System.currentTimeMillis() - userMsg.getPostTimeStamp() >= maxQueueWaitMs) {
+            metrics.increment("shed.queue");
+            replyToUser(userMsg, ACLMessage.FAILURE, "ATM_BUSY");
+            return;
+        }
+
+        Request req;
+        try {
+            req = Request.parseText(userMsg.getContent());
+        } catch (RuntimeException e) {
+            replyToUser(userMsg, ACLMessage.FAILURE, MessageTypes.ERROR);
+            return;
+        }
+
+        if (standIn != null && approveLocally(userMsg, req)) {
+            return;
+        }
+
+        String user = req.user;
+        AID shard = bank.route(user);
+        if (shard == null && bank.refresh()) {
+            shard = bank.route(user);
+        }
+        if (shard == null) {
+            System.out.println("ATM: no bank shard for " + user);
+            metrics.increment("bank.unavailable");
+            replyToUser(userMsg, ACLMessage.FAILURE, "BANK_UNAVAILABLE");
+            return;
+        }
+
+        // soldul poate fi citit de la o replică; breaker-ul rămâne cel al shard-ului
+        AID target = MessageTypes.BALANCE.equals(req.op) ? bank.routeRead(user) : null;
+        if (target == null) {
+            target = shard;
+        }
+
+        String conversationId = requestIdPrefix + (++conversationSeq);
+
         ACLMessage msgToBank = new ACLMessage(ACLMessage.REQUEST);
-        msgToBank.addReceiver(bankAID);
-        msgToBank.setContent(userMsg.getContent());
+        msgToBank.addReceiver(target);
+        Wire.writeRequest(msgToBank, req, binaryProtocol);
+        msgToBank.setConversationId(conversationId);
         msgToBank.setSender(getAID());
-        send(msgToBank);
+        // banca răspunde unei reîncercări cu răspunsul primei încercări, deci retrimiterea e sigură
+        Wire.setRequestId(msgToBank, conversationId);
+        Tracing.propagate(userMsg, msgToBank);
 
-        ACLMessage reply = blockingReceive();
-        System.out.println("ATM received reply from bank: " + (reply != null ? reply.getContent() : "null"));
-        return reply;
+        long now = System.currentTimeMillis();
+        PendingRequest request = new PendingRequest(userMsg, req, msgToBank, shard, now + bankTimeoutMs,
+                bankRetryMs > 0 ? now + bankRetryMs : Long.MAX_VALUE);
+
+        // banca e supraîncărcată: cererea așteaptă închiderea breaker-ului sau, dacă nu are timp, e refuzată
+        CircuitBreaker breaker = breakerFor(shard);
+        if (breaker.isOpen(now) || pending.size() >= maxPending) {
+            long at = afterBreaker(breaker, now);
+            if (at >= request.deadline || pending.size() >= maxPending) {
+                metrics.increment("bank.shed");
+                replyToUser(userMsg, ACLMessage.FAILURE, "BANK_BUSY");
+                return;
+            }
+            request.nextRetry = at;
+            pending.put(conversationId, request);
+            metrics.increment("bank.delayed");
+            return;
+        }
+
+        pending.put(conversationId, request);
+        // un extras vine în mai multe mesaje, deci nu poate intra într-un lot; nici cererile către replici
+        if (batchMaxSize > 1 && !MessageTypes.STATEMENT.equals(req.op) && target == shard) {
+            addToBatch(request);
+        } else {
+            sendToBank(request);
+        }
+        metrics.increment("forwarded");
+
+        String traceId = Tracing.id(userMsg);
+        if (traceId != null) {
+            Tracing.span(traceId, getLocalName(), "atm.forward", Tracing.micros(receivedAt), Tracing.nowMicros());
+        }
     }
 
-    private void forwardToUser(ACLMessage bankMsg, ACLMessage originalUserMsg) {
-        if (bankMsg == null || originalUserMsg == null) return;
+    private void sendToBank(PendingRequest request) {
+        request.sentAt = System.nanoTime();
+        send((ACLMessage) request.bankMsg.clone());
+    }
 
-        ACLMessage reply = new ACLMessage(bankMsg.getPerformative());
-        reply.addReceiver(originalUserMsg.getSender());
-        reply.setContent(bankMsg.getContent());
-        reply.setSender(getAID());
-        send(reply);
+    private void onBankReply(ACLMessage bankMsg) {
+        Response res;
+        try {
+            res = Wire.readResponse(bankMsg);
+        } catch (RuntimeException e) {
+            res = Response.of(MessageTypes.ERROR);
+        }
+        onBankReply(bankMsg, bankMsg.getConversationId(), res);
+    }
+
+    /** Răspunsul unei cereri, venit singur sau într-un lot ({@code bankMsg}). */
+    private void onBankReply(ACLMessage bankMsg, String conversationId, Response res) {
+        PendingRequest request = conversationId != null ? pending.get(conversationId) : null;
+        if (request == null) {
+            // răspuns întârziat pentru o cerere deja expirată
+            System.out.println("ATM dropped unmatched bank reply " + conversationId);
+            metrics.increment("bank.lateReplies");
+            return;
+        }
+        long now = System.nanoTime();
+        metrics.recordNanos("bank.rtt", now - request.sentAt);
+        String traceId = Tracing.id(request.userMsg);
+        if (traceId != null) {
+            Tracing.span(traceId, getLocalName(), "atm.bank", Tracing.micros(request.sentAt), Tracing.micros(now));
+            Tracing.inbound(bankMsg, getLocalName(), "atm.return", Tracing.micros(now));
+        }
+
+        if (MessageTypes.STALE.equals(res.status)) {
+            // replica e în urmă: cererea merge la shard, cu același id
+            metrics.increment("replica.stale");
+            request.bankMsg.clearAllReceiver();
+            request.bankMsg.addReceiver(request.shard);
+            sendToBank(request);
+            return;
+        }
+
+        CircuitBreaker breaker = breakerFor(request.shard);
+        if (MessageTypes.BUSY.equals(res.status)) {
+            // cererea nu a fost executată: se retrimite după pauza cerută de bancă, dacă mai e timp
+            long millis = System.currentTimeMillis();
+            breaker.onOverload(millis, res.balance);
+            metrics.increment("bank.busy");
+            long at = afterBreaker(breaker, millis);
+            if (at < request.deadline) {
+                request.nextRetry = at;
+                return;
+            }
+            pending.remove(conversationId);
+            replyToUser(request.userMsg, ACLMessage.FAILURE, "BANK_BUSY");
+            return;
+        }
+        boolean fromReplica = bank.isReplica(bankMsg.getSender());
+        if (fromReplica) {
+            metrics.increment("replica.reads");
+        } else {
+            breaker.onSuccess();
+        }
+        pending.remove(conversationId);
+        // soldul citit de la o replică poate fi în urmă, deci nu actualizează stand-in-ul
+        if (standIn != null && !fromReplica) {
+            standIn.learn(request.req, res);
+        }
 
-        System.out.println("ATM forwarded reply to user: " + reply.getContent());
+        String content = res.toText();
+        System.out.println("ATM received reply from bank: " + content);
+        replyToUser(request.userMsg, bankMsg.getPerformative(), content);
     }
 
-    // Metodă pentru preluarea reclamei de la Python FastAPI
-    public String fetchAdText() {
-        String fallback = "💰 Promoție ATM!\nFă cumpărături de minim 500 lei și poți câștiga o vacanță în Dubai!";
+    /** Trimite utilizatorului fiecare bucată a unui extras; cererea se încheie la ultima. */
+    private void onStatementChunk(ACLMessage msg) {
+        String conversationId = msg.getConversationId();
+        PendingRequest request = conversationId != null ? pending.get(conversationId) : null;
+        if (request == null) {
+            metrics.increment("bank.lateReplies");
+            return;
+        }
+        if (Statement.isLast(msg.getContent())) {
+            pending.remove(conversationId);
+            breakerFor(request.shard).onSuccess();
+            metrics.recordNanos("bank.rtt", System.nanoTime() - request.sentAt);
+        } else {
+            // extrasul a început să sosească: o retrimitere l-ar dubla
+            request.nextRetry = Long.MAX_VALUE;
+        }
+        replyToUser(request.userMsg, msg.getPerformative(), msg.getContent());
+    }
+
+    private void expirePending() {
+        long now = System.currentTimeMillis();
+        Iterator<PendingRequest> it = pending.values().iterator();
+        while (it.hasNext()) {
+            PendingRequest request = it.next();
+            if (request.deadline <= now) {
+                it.remove();
+                metrics.increment("bank.timeouts");
+                replyToUser(request.userMsg, ACLMessage.FAILURE, "BANK_TIMEOUT");
+            } else if (request.nextRetry <= now) {
+                CircuitBreaker breaker = breakerFor(request.shard);
+                if (breaker.isOpen(now)) {
+                    request.nextRetry = afterBreaker(breaker, now);
+                    continue;
+                }
+                // același conversation id: răspunsul care sosește primul este folosit, celălalt ignorat
+                request.nextRetry = bankRetryMs > 0 ? now + bankRetryMs : Long.MAX_VALUE;
+                metrics.increment("bank.retries");
+                sendToBank(request);
+            }
+        }
+    }
+
+    /* ---------------- LOTURI ---------------- */
+
+    /**
+     * Adds the request to its shard's open batch. A batch is sent when it is
+     * full, when its oldest request has waited {@code atm.batch.maxDelayUs},
+     * or when the ATM's queue runs empty, so a lone request is not delayed:
+     * requests are only batched when they arrive faster than they are forwarded.
+     */
+    private void addToBatch(PendingRequest request) {
+        long now = System.nanoTime();
+        OpenBatch batch = openBatches.computeIfAbsent(request.shard, s -> new OpenBatch(now));
+        batch.requests.add(request);
+        if (batch.requests.size() >= batchMaxSize || now - batch.openedAt >= batchMaxDelayNanos) {
+            openBatches.remove(request.shard);
+            sendBatch(request.shard, batch.requests);
+        }
+    }
+
+    private void flushBatches() {
+        if (openBatches.isEmpty()) {
+            return;
+        }
+        for (Map.Entry<AID, OpenBatch> b : openBatches.entrySet()) {
+            sendBatch(b.getKey(), b.getValue().requests);
+        }
+        openBatches.clear();
+    }
+
+    private void sendBatch(AID shard, List<PendingRequest> requests) {
+        if (requests.size() == 1) {
+            sendToBank(requests.get(0));
+            return;
+        }
+        long now = System.nanoTime();
+        List<Batch.Item> items = new ArrayList<>(requests.size());
+        for (PendingRequest r : requests) {
+            r.sentAt = now;
+            items.add(Batch.Item.of(r.bankMsg.getConversationId(), r.req, binaryProtocol));
+        }
+
+        ACLMessage msg = new ACLMessage(ACLMessage.REQUEST);
+        msg.addReceiver(shard);
+        msg.setOntology(Batch.ONTOLOGY);
+        msg.setConversationId(requestIdPrefix + "m" + (++conversationSeq));
+        msg.setByteSequenceContent(Batch.encode(items));
+        send(msg);
+        metrics.increment("batches");
+    }
+
+    /** Împarte răspunsurile unui lot cererilor lor; o cerere fără răspuns expiră sau e retrimisă singură. */
+    private void onBatchReply(ACLMessage msg) {
+        List<Batch.Item> items;
+        try {
+            items = Batch.decode(msg.getByteSequenceContent());
+        } catch (RuntimeException e) {
+            System.out.println("ATM: bad batch reply from bank: " + msg.getContent());
+            return;
+        }
+        for (Batch.Item item : items) {
+            Response res;
+            try {
+                res = item.response();
+            } catch (RuntimeException e) {
+                res = Response.of(MessageTypes.ERROR);
+            }
+            onBankReply(msg, item.id, res);
+        }
+    }
+
+    /* ---------------- STAND-IN ---------------- */
+
+    private void openStandIn() {
+        standIn = new StandInAuthorizer(
+                Integer.getInteger("atm.standin.floorLimit", 200),
+                Integer.getInteger("atm.standin.riskLimit", 500),
+                Long.getLong("atm.standin.cacheTtlMs", 3600000));
+        try {
+            standInQueue = new StandInQueue(new File("standin-" + getLocalName() + ".queue"));
+        } catch (IOException e) {
+            // fără coada pe disc nu aprobăm nimic local
+            e.printStackTrace();
+            standIn = null;
+            return;
+        }
+        for (StandIn.Entry e : standInQueue.pending()) {
+            standIn.restore(e);
+        }
+        System.out.println("ATM stand-in enabled, " + standInQueue.size() + " transactions waiting for the bank");
+
+        metrics.gauge("standin.queued", standInQueue::size);
+        addBehaviour(new TickerBehaviour(this, Long.getLong("atm.standin.flushMs", 200)) {
+            protected void onTick() {
+                flushStandIn();
+            }
+        });
+    }
+
+    /** Aprobă local o tranzacție mică: e scrisă în coada de pe disc înainte ca utilizatorul să primească răspunsul. */
+    private boolean approveLocally(ACLMessage userMsg, Request req) {
+        StandIn.Entry e = standIn.approve(req, requestIdPrefix + "s" + (++conversationSeq));
+        if (e == null) {
+            return false;
+        }
         try {
-            URL url = new URL("http://localhost:8001/ad");
-            HttpURLConnection conn = (HttpURLConnection) url.openConnection();
-            conn.setRequestMethod("GET");
-            conn.setConnectTimeout(2000);
-            conn.setReadTimeout(2000);
-
-            int status = conn.getResponseCode();
-            if (status != 200) return fallback;
-
-            Scanner scanner = new Scanner(conn.getInputStream());
-            StringBuilder sb = new StringBuilder();
-            while (scanner.hasNext()) sb.append(scanner.nextLine());
-            scanner.close();
-
-            String json = sb.toString();
-            // Extragem câmpul description
-            int descStart = json.indexOf("\"description\":\"");
-            if (descStart >= 0) {
-                descStart += 15;
-                int descEnd = json.indexOf("\"", descStart);
-                if (descEnd > descStart) {
-                    return json.substring(descStart, descEnd);
+            standInQueue.add(e);
+        } catch (IOException ex) {
+            ex.printStackTrace();
+            standIn.undo(e);
+            return false;
+        }
+        metrics.increment("standin.approved");
+        replyToUser(userMsg, ACLMessage.INFORM, standIn.response(e).toText());
+        return true;
+    }
+
+    /** Trimite tranzacțiile din coadă, câte un lot per shard; un lot fără răspuns la timp este retrimis. */
+    private void flushStandIn() {
+        long now = System.currentTimeMillis();
+        standInBatches.values().removeIf(b -> b.deadline <= now);
+        standIn.sweep();
+        if (bank == null || standInQueue.size() == 0) {
+            return;
+        }
+
+        Set<AID> inFlight = new HashSet<>();
+        for (StandInBatch b : standInBatches.values()) {
+            inFlight.add(b.shard);
+        }
+        Map<AID, List<StandIn.Entry>> batches = new HashMap<>();
+        boolean refreshed = false;
+        for (StandIn.Entry e : standInQueue.pending()) {
+            AID shard = bank.route(e.user);
+            if (shard == null && !refreshed) {
+                refreshed = true;
+                if (bank.refresh()) {
+                    shard = bank.route(e.user);
                 }
             }
+            if (shard == null || inFlight.contains(shard) || breakerFor(shard).isOpen(now)) {
+                continue;
+            }
+            List<StandIn.Entry> batch = batches.computeIfAbsent(shard, s -> new ArrayList<>());
+            if (batch.size() < standInBatchSize) {
+                batch.add(e);
+            }
+        }
+
+        for (Map.Entry<AID, List<StandIn.Entry>> b : batches.entrySet()) {
+            String conversationId = requestIdPrefix + "b" + (++conversationSeq);
+            ACLMessage msg = new ACLMessage(ACLMessage.REQUEST);
+            msg.addReceiver(b.getKey());
+            msg.setOntology(StandIn.ONTOLOGY);
+            msg.setConversationId(conversationId);
+            msg.setContent(StandIn.encodeEntries(b.getValue()));
+            send(msg);
+            standInBatches.put(conversationId, new StandInBatch(b.getKey(), now + bankTimeoutMs));
+            metrics.increment("standin.batches");
+        }
+    }
+
+    private void onStandInReply(ACLMessage msg) {
+        standInBatches.remove(msg.getConversationId());
+        String content = msg.getContent();
+        if (content.startsWith(MessageTypes.BUSY + ";")) {
+            breakerFor(msg.getSender()).onOverload(System.currentTimeMillis(), Response.parseText(content).balance);
+            return;
+        }
+
+        Map<String, Response> done = new HashMap<>();
+        for (StandIn.Result r : StandIn.decodeResults(content)) {
+            String status = r.response.status;
+            if (MessageTypes.WRONG_SHARD.equals(status) || MessageTypes.ERROR.equals(status)) {
+                continue; // rămâne în coadă și este retrimisă
+            }
+            if (MessageTypes.AUTH_FAIL.equals(status) || MessageTypes.UNKNOWN_OPERATION.equals(status)
+                    || MessageTypes.OVER_LIMIT.equals(status)) {
+                System.out.println("ATM: stand-in transaction " + r.id + " rejected by the bank: " + status);
+            }
+            done.put(r.id, r.response);
+        }
+        try {
+            for (StandIn.Entry e : standInQueue.remove(done.keySet())) {
+                standIn.posted(e, done.get(e.id));
+                metrics.increment("standin.posted");
+            }
         } catch (IOException e) {
-            System.out.println("Ad fetch failed, using fallback.");
+            e.printStackTrace();
+        }
+    }
+
+    /* ---------------- SUPRAÎNCĂRCARE ---------------- */
+
+    private CircuitBreaker breakerFor(AID shard) {
+        return breakers.computeIfAbsent(shard, s -> new CircuitBreaker(breakerMaxOpenMs));
+    }
+
+    /** Când poate pleca o cerere amânată: după închiderea breaker-ului, cu o întârziere aleatoare ca să nu plece toate deodată. */
+    private static long afterBreaker(CircuitBreaker breaker, long now) {
+        long wait = Math.max(0, breaker.openUntil() - now);
+        return now + wait + ThreadLocalRandom.current().nextLong(wait / 2 + 1);
+    }
+
+    private void replyToUser(ACLMessage originalUserMsg, int performative, String content) {
+        ACLMessage reply = originalUserMsg.createReply();
+        reply.setPerformative(performative);
+        reply.setContent(content);
+        Tracing.propagate(originalUserMsg, reply);
+        send(reply);
+
+        System.out.println("ATM forwarded reply to user: " + content);
+    }
+
+    private static class OpenBatch {
+        final List<PendingRequest> requests = new ArrayList<>();
+        /** Momentul primei cereri, în nanoTime. */
+        final long openedAt;
+
+        OpenBatch(long openedAt) {
+            this.openedAt = openedAt;
+        }
+    }
+
+    private static class StandInBatch {
+        final AID shard;
+        final long deadline;
+
+        StandInBatch(AID shard, long deadline) {
+            this.shard = shard;
+            this.deadline = deadline;
+        }
+    }
+
+    private static class PendingRequest {
+        final ACLMessage userMsg;
+        final Request req;
+        final ACLMessage bankMsg;
+        final AID shard;
+        final long deadline;
+        /** Când cererea este (re)trimisă la bancă, dacă până atunci nu a sosit răspunsul. */
+        long nextRetry;
+        /** Momentul ultimei trimiteri, în nanoTime. */
+        long sentAt;
+
+        PendingRequest(ACLMessage userMsg, Request req, ACLMessage bankMsg, AID shard, long deadline, long nextRetry) {
+            this.userMsg = userMsg;
+            this.req = req;
+            this.bankMsg = bankMsg;
+            this.shard = shard;
+            this.deadline = deadline;
+            this.nextRetry = nextRetry;
         }
-        return fallback;
     }
 }
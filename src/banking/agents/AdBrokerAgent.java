@@ -0,0 +1,169 @@
+package banking.agents;
+
+import jade.core.AID;
+import jade.core.Agent;
+import jade.core.behaviours.CyclicBehaviour;
+import jade.core.behaviours.TickerBehaviour;
+import jade.domain.DFService;
+import jade.domain.FIPAAgentManagement.*;
+import jade.lang.acl.ACLMessage;
+
+import banking.metrics.AgentMetrics;
+import banking.metrics.MetricsReporter;
+import banking.protocol.AdUpdate;
+import banking.util.ServiceDirectory;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Fetches ads from the marketing service once for the whole platform and
+ * pushes them to the ATMs.
+ *
+ * An ATM subscribes with SUBSCRIBE "AD_SUB;version" (conversation
+ * {@link #CONVERSATION}) and cancels with CANCEL. Every subscriber gets an
+ * INFORM carrying an {@link AdUpdate} whenever the pool changes: a delta from
+ * the version it has, or a full update if that version is too old. ATMs
+ * already registered in the DF when the broker starts are subscribed at
+ * version 0, so they get a full update without asking.
+ */
+public class AdBrokerAgent extends Agent {
+
+    public static final String SERVICE_TYPE = "ad-broker";
+    public static final String CONVERSATION = "ads";
+    public static final String SUBSCRIBE = "AD_SUB";
+
+    private final ServiceDirectory directory = new ServiceDirectory(this);
+    private AdPool pool;
+    /** Subscriber to the version it was last sent. Used only on the agent thread. */
+    private final Map<AID, Long> subscribers = new HashMap<>();
+    private AgentMetrics metrics;
+
+    @Override
+    protected void setup() {
+        System.out.println("AdBroker started: " + getLocalName());
+
+        DFAgentDescription dfd = new DFAgentDescription();
+        dfd.setName(getAID());
+        ServiceDescription sd = new ServiceDescription();
+        sd.setType(SERVICE_TYPE);
+        sd.setName(getLocalName());
+        dfd.addServices(sd);
+        try {
+            DFService.register(this, dfd);
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        directory.subscribe();
+
+        pool = new AdPool(
+                System.getProperty("atm.ads.url", "http://localhost:8001/ad"),
+                Integer.getInteger("atm.ads.poolSize", 8),
+                Long.getLong("atm.ads.ttlMs", 300000),
+                Long.getLong("atm.ads.refreshMs", 30000),
+                null);
+        metrics = new AgentMetrics(getLocalName());
+        metrics.gauge("ads.version", pool::version);
+        metrics.gauge("subscribers", subscribers::size);
+        metrics.register();
+        pool.setMetrics(metrics);
+        pool.start(getLocalName());
+        addBehaviour(new MetricsReporter(this, metrics, directory));
+
+        findATMs();
+
+        addBehaviour(new TickerBehaviour(this, Long.getLong("ads.publishMs", 1000)) {
+            @Override
+            protected void onTick() {
+                publish();
+            }
+        });
+
+        addBehaviour(new CyclicBehaviour() {
+            @Override
+            public void action() {
+                ACLMessage msg = receive();
+                if (msg == null) {
+                    block();
+                    return;
+                }
+                if (directory.handle(msg)) {
+                    return;
+                }
+                if ("SHUTDOWN".equals(msg.getContent())) {
+                    System.out.println("AdBroker shutting down");
+                    doDelete();
+                } else if (!CONVERSATION.equals(msg.getConversationId())) {
+                    return;
+                } else if (msg.getPerformative() == ACLMessage.SUBSCRIBE) {
+                    subscribers.put(msg.getSender(), versionOf(msg.getContent()));
+                    push(msg.getSender());
+                } else if (msg.getPerformative() == ACLMessage.CANCEL) {
+                    subscribers.remove(msg.getSender());
+                }
+            }
+        });
+    }
+
+    @Override
+    protected void takeDown() {
+        pool.close();
+        metrics.unregister();
+        directory.close();
+        try {
+            DFService.deregister(this);
+        } catch (Exception e) {
+            // platform is shutting down
+        }
+    }
+
+    private void findATMs() {
+        for (DFAgentDescription atm : directory.search("atm-service")) {
+            subscribers.put(atm.getName(), 0L);
+        }
+    }
+
+    private static long versionOf(String content) {
+        int p = content == null ? -1 : content.indexOf(';');
+        try {
+            return p < 0 ? 0 : Long.parseLong(content.substring(p + 1));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /* ---------------- PUBLISH ---------------- */
+
+    private void publish() {
+        long current = pool.version();
+        if (current == 0) {
+            return;
+        }
+        for (Map.Entry<AID, Long> sub : subscribers.entrySet()) {
+            if (sub.getValue() != current) {
+                push(sub.getKey());
+            }
+        }
+    }
+
+    private void push(AID subscriber) {
+        AdUpdate update = pool.changesSince(subscribers.get(subscriber));
+        if (update.version == 0) {
+            return; // nothing fetched yet
+        }
+
+        ACLMessage msg = new ACLMessage(ACLMessage.INFORM);
+        msg.addReceiver(subscriber);
+        msg.setConversationId(CONVERSATION);
+        try {
+            msg.setContentObject(update);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
+        send(msg);
+        metrics.increment(update.full ? "push.full" : "push.delta");
+        subscribers.put(subscriber, update.version);
+    }
+}
@@ -0,0 +1,263 @@
+package banking.agents;
+
+import banking.metrics.AgentMetrics;
+import banking.protocol.AdUpdate;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Scanner;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A small pool of ads kept fresh by a background thread, so serving an ad
+ * never waits on the marketing service.
+ *
+ * Every refresh fetches ads until the pool is full (stopping at the first
+ * failure) and evicts ads older than the TTL; when the pool is full the
+ * oldest ad makes room for a new one. {@link #next()} rotates through the
+ * live ads and returns the fallback text while none is available.
+ *
+ * Each added or removed ad bumps the pool version, so the ad broker can send
+ * a subscriber only the changes since the version it already has
+ * ({@link #changesSince}). A pool fed by the broker ({@link #apply}) does not
+ * fetch; its ads live until the broker removes them.
+ */
+public class AdPool {
+
+    private static final int MAX_REMOVALS = 64;
+
+    private final String url;
+    private final int size;
+    private final long ttlMs;
+    private final long refreshMs;
+    private final String fallback;
+
+    /** Oldest first; replaced, never mutated, so readers need no lock. */
+    private volatile List<Ad> ads = new ArrayList<>();
+    private int cursor;
+
+    // guarded by this
+    private long version;
+    /** {id, version that removed it}, oldest first. */
+    private final ArrayDeque<long[]> removals = new ArrayDeque<>();
+    /** Removals up to this version are no longer tracked; older subscribers get a full update. */
+    private long forgotten;
+
+    private ScheduledExecutorService refresher;
+    private volatile AgentMetrics metrics;
+
+    public AdPool(String url, int size, long ttlMs, long refreshMs, String fallback) {
+        this.url = url;
+        this.size = Math.max(1, size);
+        this.ttlMs = ttlMs;
+        this.refreshMs = refreshMs;
+        this.fallback = fallback;
+    }
+
+    /** Fetch latency goes to {@code ads.fetch}, failures to {@code ads.fetch.failed}. */
+    public void setMetrics(AgentMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    public void start(String owner) {
+        refresher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "ad-refresh-" + owner);
+            t.setDaemon(true);
+            return t;
+        });
+        refresher.scheduleWithFixedDelay(this::refresh, 0, refreshMs, TimeUnit.MILLISECONDS);
+    }
+
+    public void close() {
+        if (refresher != null) {
+            refresher.shutdownNow();
+            refresher = null;
+        }
+    }
+
+    /** Called on the agent thread. */
+    public String next() {
+        List<Ad> current = ads;
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < current.size(); i++) {
+            Ad ad = current.get(Math.floorMod(cursor++, current.size()));
+            if (now < ad.expiresAt) {
+                return ad.text;
+            }
+        }
+        return fallback;
+    }
+
+    /* ---------------- VERSIONS ---------------- */
+
+    public synchronized long version() {
+        return version;
+    }
+
+    /** @return what a pool at version {@code since} needs to reach the current version */
+    public synchronized AdUpdate changesSince(long since) {
+        Map<Long, String> added = new LinkedHashMap<>();
+        if (since <= 0 || since > version || since < forgotten) {
+            for (Ad ad : ads) {
+                added.put(ad.id, ad.text);
+            }
+            return AdUpdate.full(version, added);
+        }
+
+        for (Ad ad : ads) {
+            if (ad.id > since) {
+                added.put(ad.id, ad.text);
+            }
+        }
+        List<Long> removed = new ArrayList<>();
+        for (long[] r : removals) {
+            if (r[1] > since && r[0] <= since) {
+                removed.add(r[0]);
+            }
+        }
+        return AdUpdate.delta(since, version, added, removed);
+    }
+
+    /**
+     * Applies an update from the broker.
+     *
+     * @return false if it is a delta from another version; the caller then
+     *         subscribes again with {@link #version()}
+     */
+    public synchronized boolean apply(AdUpdate update) {
+        List<Ad> next = new ArrayList<>();
+        if (!update.full) {
+            if (update.base != version) {
+                return false;
+            }
+            for (Ad ad : ads) {
+                if (!update.removed.contains(ad.id)) {
+                    next.add(ad);
+                }
+            }
+        }
+        for (Map.Entry<Long, String> e : update.added.entrySet()) {
+            next.add(new Ad(e.getKey(), e.getValue(), Long.MAX_VALUE));
+        }
+        ads = next;
+        version = update.version;
+        return true;
+    }
+
+    /* ---------------- REFRESH ---------------- */
+
+    private void refresh() {
+        try {
+            synchronized (this) {
+                long now = System.currentTimeMillis();
+                List<Ad> next = new ArrayList<>(ads.size());
+                for (Ad ad : ads) {
+                    if (now < ad.expiresAt) {
+                        next.add(ad);
+                    } else {
+                        removed(ad);
+                    }
+                }
+                ads = next;
+            }
+
+            // a full pool still fetches one ad per round, so the content rotates
+            int fetches = Math.max(1, size - ads.size());
+            for (int i = 0; i < fetches; i++) {
+                long start = System.nanoTime();
+                String text = fetch();
+                AgentMetrics m = metrics;
+                if (m != null) {
+                    m.recordNanos("ads.fetch", System.nanoTime() - start);
+                    if (text == null) {
+                        m.increment("ads.fetch.failed");
+                    }
+                }
+                if (text == null) {
+                    break;
+                }
+                added(text);
+            }
+        } catch (RuntimeException e) {
+            // must not escape, or the executor cancels the refresh schedule
+            e.printStackTrace();
+        }
+    }
+
+    private synchronized void added(String text) {
+        long expiresAt = System.currentTimeMillis() + ttlMs;
+        List<Ad> next = new ArrayList<>(ads);
+        for (int i = 0; i < next.size(); i++) {
+            Ad ad = next.get(i);
+            if (ad.text.equals(text)) {
+                // same ad again: keep its id, subscribers already have it
+                next.set(i, new Ad(ad.id, text, expiresAt));
+                ads = next;
+                return;
+            }
+        }
+        if (next.size() >= size) {
+            removed(next.remove(0));
+        }
+        next.add(new Ad(++version, text, expiresAt));
+        ads = next;
+    }
+
+    private void removed(Ad ad) {
+        removals.add(new long[] { ad.id, ++version });
+        if (removals.size() > MAX_REMOVALS) {
+            forgotten = removals.poll()[1];
+        }
+    }
+
+    /** @return the ad description, or null if the service is unavailable */
+    private String fetch() {
+        try {
+            HttpURLConnection conn = (HttpURLConnection) new URL(url).openConnection();
+            conn.setRequestMethod("GET");
+            conn.setConnectTimeout(2000);
+            conn.setReadTimeout(2000);
+
+            int status = conn.getResponseCode();
+            if (status != 200) return null;
+
+            Scanner scanner = new Scanner(conn.getInputStream(), "UTF-8");
+            StringBuilder sb = new StringBuilder();
+            while (scanner.hasNext()) sb.append(scanner.nextLine());
+            scanner.close();
+
+            String json = sb.toString();
+            int descStart = json.indexOf("\"description\":\"");
+            if (descStart >= 0) {
+                descStart += 15;
+                int descEnd = json.indexOf("\"", descStart);
+                if (descEnd > descStart) {
+                    return json.substring(descStart, descEnd).replace("\\n", "\n");
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("Ad fetch failed: " + e.getMessage());
+        }
+        return null;
+    }
+
+    private static class Ad {
+        final long id;
+        final String text;
+        final long expiresAt;
+
+        Ad(long id, String text, long expiresAt) {
+            this.id = id;
+            this.text = text;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
@@ -1,29 +1,206 @@
 package banking.agents;
 
+import jade.core.AID;
 import jade.core.Agent;
 import jade.core.behaviours.CyclicBehaviour;
+import jade.core.behaviours.TickerBehaviour;
 import jade.domain.DFService;
 import jade.domain.FIPAAgentManagement.*;
 import jade.lang.acl.ACLMessage;
 
+import banking.metrics.AgentMetrics;
+import banking.metrics.MetricsReporter;
+import banking.metrics.Tracing;
 import banking.model.Account;
+import banking.protocol.Batch;
+import banking.protocol.MessageTypes;
+import banking.protocol.Replication;
+import banking.protocol.Request;
+import banking.protocol.Response;
+import banking.protocol.StandIn;
+import banking.protocol.Statement;
+import banking.protocol.Wire;
+import banking.persistence.AccountImport;
+import banking.persistence.AccountStore;
+import banking.persistence.HeapAccountStore;
+import banking.persistence.Ledger;
+import banking.persistence.MappedAccountStore;
+import banking.persistence.PostedEntries;
+import banking.persistence.TransactionJournal;
+import banking.service.BankService;
+import banking.util.ReplyCache;
+import banking.util.ServiceDirectory;
 
 import java.io.*;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
-import banking.util.SecurityUtil;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 public class BankAgent extends Agent {
 
-    private Map<String, Account> accounts = new HashMap<>();
-    private static final String DATA_FILE = "accounts.dat";
+    private AccountStore accounts;
+    private static final String DATA_EXT = ".dat";
+    private static final String MAPPED_EXT = ".map";
+    private static final String JOURNAL_EXT = ".journal";
+    private static final String LEDGER_EXT = ".ledger";
+    private static final String POSTED_EXT = ".posted";
+
+    /** This agent owns the accounts with {@code BankRouter.shardOf(user, shardCount) == shard}. */
+    private int shard = 0;
+    private int shardCount = 1;
+
+    private TransactionJournal journal;
+    /** Ids of the stand-in entries posted recently, kept across restarts. */
+    private PostedEntries posted;
+
+    private final ExecutorService checkpointer = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "bank-checkpoint");
+        t.setDaemon(true);
+        return t;
+    });
+    private final AtomicBoolean checkpointRunning = new AtomicBoolean();
+
+    /** Null when operations run inline on the agent thread (bank.workers=0). */
+    private ExecutorService workers;
+    /** Operations hold the read side; a checkpoint capture takes the write side. */
+    private final ReadWriteLock checkpointLock = new ReentrantReadWriteLock();
+
+    private BankService service;
+    private AgentMetrics metrics;
+
+    /** Account history; statements are read on their own thread, never on the workers. */
+    private Ledger ledger;
+    private ExecutorService statements;
+    private final int statementChunkSize = Math.max(1, Integer.getInteger("bank.statement.chunkSize", 50));
+
+    /*
+     * Admission control: a request is rejected with BUSY;retryMs when the
+     * backlog (agent queue plus worker queue) reaches maxQueue, or when its
+     * wait reaches maxWaitMs: the time it already spent in the agent queue
+     * (JADE stamps messages as they are queued) plus the worker queue ahead
+     * of it at the recent service time. Rejecting is cheap, so a long queue
+     * drains quickly instead of every request in it timing out.
+     */
+    private static final int MIN_RETRY_MS = 20;
+    private static final int MAX_RETRY_MS = 5000;
+    private final int maxQueue = Integer.getInteger("bank.admission.maxQueue", 1000);
+    private final long maxWaitMs = Long.getLong("bank.admission.maxWaitMs", 1000);
+    private int parallelism = 1;
+    /** Moving average of the time an operation holds its thread, updated by every worker. */
+    private final AtomicLong avgServiceNanos = new AtomicLong();
+
+    /*
+     * Replication: the read replicas subscribed to this shard, with the time
+     * each last renewed its subscription, and the records not shipped to
+     * them yet. The epoch tells the replicas that the primary restarted;
+     * shipSeq is used on the agent thread only.
+     */
+    private static final int SNAPSHOT_CHUNK = 10000;
+    private static final long SUBSCRIPTION_LEASE_MS = 10000;
+    private final Map<AID, Long> replicas = new ConcurrentHashMap<>();
+    private final List<byte[]> unshipped = new ArrayList<>();
+    private final long epoch = ThreadLocalRandom.current().nextLong();
+    private long shipSeq;
+
+    /** Replies by {@link #replyKey}, so a retried request is not executed twice. */
+    private final ReplyCache<Response> replies = new ReplyCache<>(
+            Integer.getInteger("bank.dedup.maxEntries", 100000),
+            Long.getLong("bank.dedup.ttlMs", 600000));
+
+    /** The DF registrations, to tell the ATMs, which may post stand-in entries, from other agents. */
+    private final ServiceDirectory directory = new ServiceDirectory(this);
+
+    /** Local names of the agents allowed to IMPORT a file of this machine; none by default. */
+    private final Set<String> importSenders = new HashSet<>(Arrays.asList(
+            System.getProperty("bank.import.senders", "").split("\\s*,\\s*")));
+
+    /** The SHUTDOWN message being served, answered once the data is saved. */
+    private ACLMessage shutdownRequest;
 
     @Override
     protected void setup() {
-        System.out.println("BankAgent started");
+        Object[] args = getArguments();
+        if (args != null && args.length >= 2) {
+            shard = Integer.parseInt(String.valueOf(args[0]));
+            shardCount = Integer.parseInt(String.valueOf(args[1]));
+        }
+        System.out.println("BankAgent started"
+                + (shardCount > 1 ? " (shard " + shard + "/" + shardCount + ")" : ""));
 
         registerInDF();
+        directory.subscribe();
+        openLedger();
         loadData();
+        service = new BankService(accounts, journal, Long.getLong("bank.session.ttlMs", 300000));
+        service.setPostedEntries(posted);
+        service.setStandInLimit(Integer.getInteger("bank.standin.floorLimit", 200));
+        service.setLedger(ledger);
+
+        metrics = new AgentMetrics(getLocalName());
+        journal.setFlushObserver(nanos -> metrics.recordNanos("journal.flush", nanos));
+
+        int workerCount = Integer.getInteger("bank.workers", 0);
+        if (workerCount > 0) {
+            AtomicInteger ids = new AtomicInteger();
+            workers = Executors.newFixedThreadPool(workerCount, r -> {
+                Thread t = new Thread(r, getLocalName() + "-worker-" + ids.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            });
+            System.out.println("Bank: " + workerCount + " worker threads");
+            parallelism = workerCount;
+        }
+
+        metrics.gauge("queue.acl", this::getCurQueueSize);
+        metrics.gauge("queue.workers", this::workerQueueSize);
+        metrics.gauge("accounts", () -> accounts.size());
+        metrics.gauge("dedup.entries", replies::size);
+        metrics.gauge("replication.replicas", replicas::size);
+        metrics.register();
+        addBehaviour(new MetricsReporter(this, metrics));
+
+        String importFile = System.getProperty("bank.import");
+        if (importFile != null) {
+            importAccounts(new File(importFile), null);
+        }
+
+        addBehaviour(new TickerBehaviour(this, Long.getLong("bank.checkpoint.intervalMs", 30000)) {
+            @Override
+            protected void onTick() {
+                checkpoint();
+            }
+        });
+
+        journal.setRecordObserver(this::publish);
+        addBehaviour(new TickerBehaviour(this, Long.getLong("bank.replication.intervalMs", 50)) {
+            @Override
+            protected void onTick() {
+                ship();
+            }
+        });
+
+        addBehaviour(new TickerBehaviour(this, 60000) {
+            @Override
+            protected void onTick() {
+                service.sweepSessions();
+            }
+        });
 
         addBehaviour(new CyclicBehaviour() {
             @Override
@@ -46,8 +223,10 @@ public class BankAgent extends Agent {
             dfd.setName(getAID());
 
             ServiceDescription sd = new ServiceDescription();
-            sd.setType("bank-service");
-            sd.setName("CentralBank");
+            sd.setType(BankRouter.SERVICE_TYPE);
+            sd.setName(shardCount > 1 ? "CentralBank-" + shard : "CentralBank");
+            sd.addProperties(new Property(BankRouter.PROP_SHARD, String.valueOf(shard)));
+            sd.addProperties(new Property(BankRouter.PROP_SHARDS, String.valueOf(shardCount)));
 
             dfd.addServices(sd);
             DFService.register(this, dfd);
@@ -60,147 +239,885 @@ public class BankAgent extends Agent {
 
     /* ---------------- MESSAGE HANDLING ---------------- */
 
+    /**
+     * Runs on the agent thread: decodes the request (binary or text) and
+     * either executes it inline or hands it to the worker pool. The reply
+     * uses the same format as the request.
+     */
     private void handleMessage(ACLMessage msg) {
-        String content = msg.getContent();
-        String[] parts = content.split(";");
+        if (directory.handle(msg)) {
+            return;
+        }
+        long receivedAt = System.nanoTime();
+        Tracing.inbound(msg, getLocalName(), "bank.inbound", Tracing.micros(receivedAt));
+        if (StandIn.ONTOLOGY.equals(msg.getOntology())) {
+            handleStandIn(msg);
+            return;
+        }
+        if (Batch.ONTOLOGY.equals(msg.getOntology())) {
+            handleBatch(msg, receivedAt);
+            return;
+        }
+        if (Replication.ONTOLOGY.equals(msg.getOntology())) {
+            handleReplication(msg);
+            return;
+        }
+        boolean binary = Wire.isBinary(msg);
+        Request req;
+        try {
+            req = Wire.readRequest(msg);
+        } catch (RuntimeException e) {
+            metrics.increment("requests.malformed");
+            reply(msg, Response.of(MessageTypes.ERROR), binary);
+            return;
+        }
 
-        ACLMessage reply = msg.createReply();
+        if (MessageTypes.IMPORT.equals(req.op)) {
+            // the user field is the file; this shard takes its own accounts from it, the others need their own IMPORT
+            if (!importSenders.contains(msg.getSender().getLocalName())) {
+                metrics.increment("import.refused");
+                reply(msg, Response.of(MessageTypes.AUTH_FAIL), binary);
+            } else if (req.user == null || req.user.isEmpty()) {
+                reply(msg, Response.of(MessageTypes.ERROR), binary);
+            } else {
+                importAccounts(new File(req.user), msg);
+            }
+            return;
+        }
+
+        Response misrouted = misrouted(req);
+        if (misrouted != null) {
+            reply(msg, misrouted, binary);
+            return;
+        }
+
+        if (MessageTypes.SHUTDOWN.equals(req.op)) {
+            // takeDown() saves the data, then answers
+            shutdownRequest = msg;
+            doDelete();
+            return;
+        }
+
+        int retryMs = admission(msg);
+        if (retryMs > 0) {
+            // rejected before it is claimed in the reply cache, so a retry with the same id still runs
+            metrics.increment("admission.rejected");
+            reply(msg, Response.busy(retryMs), binary);
+            return;
+        }
 
+        if (MessageTypes.STATEMENT.equals(req.op) && statements != null) {
+            statements.execute(() -> streamStatement(msg, req, binary));
+            return;
+        }
+
+        if (workers != null) {
+            workers.execute(() -> execute(msg, req, binary, receivedAt));
+        } else {
+            execute(msg, req, binary, receivedAt);
+        }
+    }
+
+    /** @return the reply to a request for accounts this shard does not own, or null to run it */
+    private Response misrouted(Request req) {
+        if (req.user != null && BankRouter.shardOf(req.user, shardCount) != shard) {
+            return Response.of(MessageTypes.WRONG_SHARD);
+        }
+        if (MessageTypes.TRANSFER.equals(req.op) && req.to != null
+                && BankRouter.shardOf(req.to, shardCount) != shard) {
+            return Response.of(MessageTypes.CROSS_SHARD);
+        }
+        return null;
+    }
+
+    private void execute(ACLMessage msg, Request req, boolean binary, long receivedAt) {
+        String requestId = Wire.requestId(msg);
+        String key = requestId != null ? replyKey(msg.getSender(), requestId, req.op, req.user) : null;
+        CompletableFuture<Response> first = key != null ? replies.claim(key) : null;
+        if (first != null) {
+            // a retry or a duplicate: answer with the first attempt's reply once that is durable
+            metrics.increment("requests.duplicate");
+            first.thenAccept(r -> journal.afterCommit(() -> reply(msg, r, binary),
+                    () -> reply(msg, Response.of(MessageTypes.ERROR), binary)));
+            return;
+        }
+
+        Response res;
+        boolean failed = false;
+        long startedAt = System.nanoTime();
+
+        checkpointLock.readLock().lock();
         try {
-            switch (parts[0]) {
+            res = service.execute(req);
+        } catch (Exception e) {
+            res = Response.of(MessageTypes.ERROR);
+            failed = true;
+            metrics.increment("errors");
+            e.printStackTrace();
+        } finally {
+            checkpointLock.readLock().unlock();
+        }
+
+        if (key != null) {
+            if (failed) {
+                // a transient failure: the retry runs again instead of getting this ERROR
+                replies.release(key, res);
+            } else {
+                replies.complete(key, res);
+            }
+        }
+
+        Response result = res;
+        long executedAt = System.nanoTime();
+        recordServiceTime(executedAt - startedAt);
+        // Replies are held back until the writes they acknowledge are durable.
+        journal.afterCommit(() -> {
+            reply(msg, result, binary);
+            long repliedAt = System.nanoTime();
+            metrics.increment("status." + result.status);
+            metrics.recordNanos("op." + req.op, repliedAt - receivedAt);
 
-                case "CREATE":
-                    reply.setContent(handleCreate(parts));
-                    break;
+            String traceId = Tracing.id(msg);
+            if (traceId != null) {
+                String agent = getLocalName();
+                Tracing.span(traceId, agent, "bank.dispatch", Tracing.micros(receivedAt), Tracing.micros(startedAt));
+                Tracing.span(traceId, agent, "bank.execute", Tracing.micros(startedAt), Tracing.micros(executedAt));
+                Tracing.span(traceId, agent, "bank.commit", Tracing.micros(executedAt), Tracing.micros(repliedAt));
+            }
+        }, () -> {
+            // the journal failed: the change may not be on disk, so it is not acknowledged
+            reply(msg, Response.of(MessageTypes.ERROR), binary);
+            metrics.increment("errors");
+        });
+    }
 
-                case "AUTH":
-                    reply.setContent(handleAuth(parts));
-                    break;
+    /* ---------------- BATCHES ---------------- */
 
-                case "DEPOSIT":
-                    reply.setContent(handleDeposit(parts));
-                    break;
+    private void handleBatch(ACLMessage msg, long receivedAt) {
+        List<Batch.Item> items;
+        try {
+            items = Batch.decode(msg.getByteSequenceContent());
+        } catch (RuntimeException e) {
+            metrics.increment("requests.malformed");
+            reply(msg, Response.of(MessageTypes.ERROR), false);
+            return;
+        }
 
-                case "WITHDRAW":
-                    reply.setContent(handleWithdraw(parts));
-                    break;
-                case "SHUTDOWN":
-                    saveData();
-                    reply.setContent("BANK_SHUTDOWN_OK");
-                    doDelete();
-                    return;
+        int retryMs = admission(msg);
+        if (retryMs > 0) {
+            metrics.increment("admission.rejected");
+            List<Batch.Item> busy = new ArrayList<>(items.size());
+            for (Batch.Item item : items) {
+                busy.add(Batch.Item.of(item.id, Response.busy(retryMs), item.isBinary()));
+            }
+            replyBatch(msg, busy);
+            return;
+        }
 
-                default:
-                    reply.setContent("UNKNOWN_OPERATION");
+        if (workers != null) {
+            workers.execute(() -> executeBatch(msg, items, receivedAt));
+        } else {
+            executeBatch(msg, items, receivedAt);
+        }
+    }
+
+    /**
+     * Runs the requests of a batch in one pass on one thread and answers them
+     * with one message, sent once the whole batch is durable, so the batch
+     * costs a single journal flush.
+     */
+    private void executeBatch(ACLMessage msg, List<Batch.Item> items, long receivedAt) {
+        List<String> ops = new ArrayList<>(items.size());
+        List<CompletableFuture<Response>> results = new ArrayList<>(items.size());
+        long startedAt = System.nanoTime();
+
+        checkpointLock.readLock().lock();
+        try {
+            for (Batch.Item item : items) {
+                Request req;
+                try {
+                    req = item.request();
+                } catch (RuntimeException e) {
+                    metrics.increment("requests.malformed");
+                    ops.add(null);
+                    results.add(CompletableFuture.completedFuture(Response.of(MessageTypes.ERROR)));
+                    continue;
+                }
+                ops.add(req.op);
+                results.add(executeItem(msg.getSender(), item.id, req));
             }
+        } finally {
+            checkpointLock.readLock().unlock();
+        }
+
+        long executedAt = System.nanoTime();
+        recordServiceTime((executedAt - startedAt) / items.size());
+
+        // duplicates of requests still running elsewhere complete later; never block a worker on them
+        CompletableFuture.allOf(results.toArray(new CompletableFuture<?>[0])).thenRun(() -> journal.afterCommit(() -> {
+            List<Batch.Item> replies = new ArrayList<>(items.size());
+            for (int i = 0; i < items.size(); i++) {
+                Response res = results.get(i).join();
+                replies.add(Batch.Item.of(items.get(i).id, res, items.get(i).isBinary()));
+                metrics.increment("status." + res.status);
+            }
+            replyBatch(msg, replies);
+
+            long repliedAt = System.nanoTime();
+            metrics.increment("batches");
+            for (String op : ops) {
+                if (op != null) {
+                    metrics.recordNanos("op." + op, repliedAt - receivedAt);
+                }
+            }
+        }, () -> {
+            List<Batch.Item> errors = new ArrayList<>(items.size());
+            for (Batch.Item item : items) {
+                errors.add(Batch.Item.of(item.id, Response.of(MessageTypes.ERROR), item.isBinary()));
+            }
+            replyBatch(msg, errors);
+            metrics.increment("errors");
+        }));
+    }
+
+    /** Runs one request of a batch, unless its request id was seen before. */
+    private CompletableFuture<Response> executeItem(AID sender, String requestId, Request req) {
+        Response misrouted = misrouted(req);
+        if (misrouted != null) {
+            return CompletableFuture.completedFuture(misrouted);
+        }
+        String key = replyKey(sender, requestId, req.op, req.user);
+        CompletableFuture<Response> first = replies.claim(key);
+        if (first != null) {
+            metrics.increment("requests.duplicate");
+            return first;
+        }
+
+        Response res;
+        try {
+            // SHUTDOWN and IMPORT are not run from a batch: the service answers UNKNOWN_OPERATION
+            res = service.execute(req);
         } catch (Exception e) {
-            reply.setContent("ERROR");
+            res = Response.of(MessageTypes.ERROR);
+            metrics.increment("errors");
             e.printStackTrace();
+            replies.release(key, res);
+            return CompletableFuture.completedFuture(res);
         }
+        replies.complete(key, res);
+        return CompletableFuture.completedFuture(res);
+    }
+
+    /**
+     * The reply cache key of a request. Request ids are chosen by the clients
+     * and can be guessed, so an id only matches a request from the same
+     * sender, for the same operation and account: anyone else reusing it
+     * runs their own request instead of getting someone's reply (a session
+     * token, say).
+     */
+    private static String replyKey(AID sender, String requestId, String op, String user) {
+        return sender.getName() + '|' + requestId + '|' + op + '|' + user;
+    }
 
+    private void replyBatch(ACLMessage request, List<Batch.Item> items) {
+        ACLMessage reply = request.createReply();
+        reply.setByteSequenceContent(Batch.encode(items));
         send(reply);
     }
 
-    /* ---------------- OPERATIONS ---------------- */
+    /* ---------------- STAND-IN ---------------- */
+
+    /** Stand-in entries are posted without a PIN, so only agents registered as ATMs may send them. */
+    private void handleStandIn(ACLMessage msg) {
+        if (!directory.isRegistered(msg.getSender(), "atm-service")) {
+            metrics.increment("standin.refused");
+            System.out.println("Bank: stand-in entries from " + msg.getSender().getName()
+                    + ", not a registered ATM, refused");
+            reply(msg, Response.of(MessageTypes.AUTH_FAIL), false);
+            return;
+        }
+        List<StandIn.Entry> entries;
+        try {
+            entries = StandIn.decodeEntries(msg.getContent());
+        } catch (RuntimeException e) {
+            metrics.increment("requests.malformed");
+            reply(msg, Response.of(MessageTypes.ERROR), false);
+            return;
+        }
 
-    private String handleCreate(String[] p) {
-        String user = p[1];
-        String pin = p[2];
-        int balance = Integer.parseInt(p[3]);
+        int retryMs = admission(msg);
+        if (retryMs > 0) {
+            metrics.increment("admission.rejected");
+            reply(msg, Response.busy(retryMs), false);
+            return;
+        }
 
-        if (accounts.containsKey(user)) {
-            return "ACCOUNT_EXISTS";
+        if (workers != null) {
+            workers.execute(() -> postStandIn(msg, entries));
+        } else {
+            postStandIn(msg, entries);
         }
+    }
 
-        String pinHash = SecurityUtil.hashPIN(pin);
-        accounts.put(user, new Account(user, pinHash, balance));
-        saveData();
+    /**
+     * Reconciles a batch of transactions an ATM approved on its own. Each entry
+     * is posted once: a resent batch gets the replies of the first posting, or,
+     * once they have left the reply cache (or the bank restarted), the current
+     * balance, as the ids of posted entries are kept on disk.
+     * A failed entry is not remembered, so the ATM can send it again.
+     */
+    private void postStandIn(ACLMessage msg, List<StandIn.Entry> entries) {
+        List<StandIn.Result> results = new ArrayList<>(entries.size());
 
-        return "ACCOUNT_CREATED;" + balance;
+        checkpointLock.readLock().lock();
+        try {
+            for (StandIn.Entry e : entries) {
+                Response res;
+                CompletableFuture<Response> first;
+                String key = replyKey(msg.getSender(), e.id, e.op, e.user);
+                if (BankRouter.shardOf(e.user, shardCount) != shard) {
+                    res = Response.of(MessageTypes.WRONG_SHARD);
+                } else if ((first = replies.claim(key)) != null) {
+                    // the entries of a batch are posted in order, so this never waits on itself
+                    res = first.join();
+                } else {
+                    try {
+                        res = service.post(e);
+                        replies.complete(key, res);
+                        metrics.increment("standin.posted");
+                        if (MessageTypes.OVERDRAWN.equals(res.status)) {
+                            metrics.increment("standin.overdrawn");
+                        }
+                    } catch (Exception ex) {
+                        ex.printStackTrace();
+                        res = Response.of(MessageTypes.ERROR);
+                        replies.release(key, res);
+                    }
+                }
+                results.add(new StandIn.Result(e.id, res));
+            }
+        } finally {
+            checkpointLock.readLock().unlock();
+        }
+
+        journal.afterCommit(() -> replyStandIn(msg, results), () -> {
+            List<StandIn.Result> errors = new ArrayList<>(results.size());
+            for (StandIn.Result r : results) {
+                errors.add(new StandIn.Result(r.id, Response.of(MessageTypes.ERROR)));
+            }
+            replyStandIn(msg, errors);
+        });
     }
 
-    private String handleAuth(String[] p) {
-        String user = p[1];
-        String pin = p[2];
+    private void replyStandIn(ACLMessage msg, List<StandIn.Result> results) {
+        ACLMessage reply = msg.createReply();
+        reply.setPerformative(ACLMessage.INFORM);
+        reply.setOntology(StandIn.ONTOLOGY);
+        reply.setContent(StandIn.encodeResults(results));
+        send(reply);
+    }
+
+    /* ---------------- STATEMENTS ---------------- */
 
-        Account acc = accounts.get(user);
-        if (acc == null) {
-            return "AUTH_FAIL";
+    /** Opened before the journal is replayed, which appends the entries the ledger lost in a crash. */
+    private void openLedger() {
+        if (!Boolean.parseBoolean(System.getProperty("bank.ledger", "true"))) {
+            return;
+        }
+        try {
+            ledger = new Ledger(new File(dataFile(LEDGER_EXT)));
+        } catch (IOException e) {
+            // the bank works without history; STATEMENT is then an unknown operation
+            e.printStackTrace();
+            return;
         }
+        statements = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, getLocalName() + "-statements");
+            t.setDaemon(true);
+            return t;
+        });
+    }
 
-        String pinHash = SecurityUtil.hashPIN(pin);
-        if (!acc.getPinHash().equals(pinHash)) {
-            return "AUTH_FAIL";
+    /** Sends one page of history as a stream of chunks, see {@link Statement}. */
+    private void streamStatement(ACLMessage msg, Request req, boolean binary) {
+        Ledger.Page page;
+        try {
+            page = service.statement(req);
+        } catch (IllegalArgumentException e) {
+            reply(msg, Response.of(MessageTypes.ERROR), binary);
+            return;
+        } catch (IOException e) {
+            e.printStackTrace();
+            metrics.increment("errors");
+            reply(msg, Response.of(MessageTypes.ERROR), binary);
+            return;
+        }
+        if (page == null) {
+            reply(msg, Response.of(MessageTypes.AUTH_FAIL), binary);
+            return;
         }
 
-        return "AUTH_OK;" + acc.getBalance();
+        List<String> lines = new ArrayList<>(statementChunkSize);
+        int sent = 0;
+        do {
+            lines.clear();
+            for (int i = sent; i < page.entries.size() && lines.size() < statementChunkSize; i++) {
+                lines.add(page.entries.get(i).toText());
+            }
+            sent += lines.size();
+            ACLMessage chunk = msg.createReply();
+            chunk.setOntology(Statement.ONTOLOGY);
+            chunk.setContent(Statement.chunk(lines, sent == page.entries.size(), page.next));
+            send(chunk);
+        } while (sent < page.entries.size());
+        metrics.increment("statements");
     }
 
-    private String handleDeposit(String[] p) {
-        String user = p[1];
-        String pin = p[2];
-        int amount = Integer.parseInt(p[3]);
+    /* ---------------- REPLICATION ---------------- */
 
-        Account acc = accounts.get(user);
-        if (acc == null || !acc.getPinHash().equals(SecurityUtil.hashPIN(pin))) {
-            return "AUTH_FAIL";
+    private void handleReplication(ACLMessage msg) {
+        AID replica = msg.getSender();
+        if (msg.getPerformative() != ACLMessage.CANCEL && !BankRouter.isReplicaOf(directory, replica, shard)) {
+            // the records carry every account's PIN digest and balance
+            metrics.increment("replication.refused");
+            System.out.println("Bank: " + replica.getName() + " is not a replica of this shard, ignoring "
+                    + ACLMessage.getPerformative(msg.getPerformative()));
+            return;
         }
+        switch (msg.getPerformative()) {
+            case ACLMessage.SUBSCRIBE:
+                subscribe(replica);
+                break;
+            case ACLMessage.CONFIRM:
+                // an unknown replica is not re-added: it notices the silence and subscribes again
+                replicas.computeIfPresent(replica, (aid, seen) -> System.currentTimeMillis());
+                break;
+            case ACLMessage.CANCEL:
+                replicas.remove(replica);
+                if (replicas.isEmpty()) {
+                    dropUnshipped();
+                }
+                System.out.println("Bank: replica " + replica.getLocalName() + " unsubscribed");
+                break;
+            default:
+                metrics.increment("requests.malformed");
+        }
+    }
 
-        acc.deposit(amount);
-        saveData();
+    /**
+     * Starts shipping to a replica: a snapshot of the accounts, then the
+     * changes after it. The snapshot is taken while no operation
+     * runs, so it matches shipSeq exactly, and it is sent once the records
+     * it contains are durable.
+     */
+    private void subscribe(AID replica) {
+        List<byte[]> snapshot = new ArrayList<>(accounts.size());
+        long seq;
+        checkpointLock.writeLock().lock();
+        try {
+            ship(); // the replicas already subscribed get the changes before the cut
+            dropUnshipped(); // left from before the last replica went, and in the snapshot anyway
+            accounts.forEach(acc -> snapshot.add(
+                    TransactionJournal.createRecord(acc.getUsername(), acc.getPinDigest(), acc.getBalance())));
+            replicas.put(replica, System.currentTimeMillis());
+            seq = shipSeq;
+        } finally {
+            checkpointLock.writeLock().unlock();
+        }
+        System.out.println("Bank: replica " + replica.getLocalName() + " subscribed, sending "
+                + snapshot.size() + " snapshot records");
 
-        return "DEPOSIT_OK;" + acc.getBalance();
+        List<AID> to = Collections.singletonList(replica);
+        journal.afterCommit(() -> {
+            for (int i = 0; i < snapshot.size(); i += SNAPSHOT_CHUNK) {
+                sendReplication(to, Replication.SNAPSHOT, seq,
+                        snapshot.subList(i, Math.min(snapshot.size(), i + SNAPSHOT_CHUNK)));
+            }
+            sendReplication(to, Replication.SNAPSHOT_END, seq, Collections.emptyList());
+        });
     }
 
-    private String handleWithdraw(String[] p) {
-        String user = p[1];
-        String pin = p[2];
-        int amount = Integer.parseInt(p[3]);
+    /** Called by the journal, under its lock; keeps nothing while there are no replicas. */
+    private void publish(byte[] record) {
+        if (replicas.isEmpty()) {
+            return;
+        }
+        synchronized (unshipped) {
+            unshipped.add(record);
+        }
+    }
 
-        Account acc = accounts.get(user);
-        if (acc == null || !acc.getPinHash().equals(SecurityUtil.hashPIN(pin))) {
-            return "AUTH_FAIL";
+    /**
+     * Runs on the agent thread: sends what changed since the last tick once
+     * it is durable, or a heartbeat if nothing did, so the replicas know how
+     * current they are.
+     */
+    private void ship() {
+        long now = System.currentTimeMillis();
+        replicas.values().removeIf(seen -> now - seen > SUBSCRIPTION_LEASE_MS);
+        if (replicas.isEmpty()) {
+            dropUnshipped();
+            return;
+        }
+
+        List<byte[]> records;
+        synchronized (unshipped) {
+            records = new ArrayList<>(unshipped);
+            unshipped.clear();
+        }
+        List<AID> to = new ArrayList<>(replicas.keySet());
+        if (records.isEmpty()) {
+            sendReplication(to, Replication.HEARTBEAT, shipSeq, Collections.emptyList());
+            return;
+        }
+        long seq = ++shipSeq;
+        metrics.increment("replication.changes");
+        journal.afterCommit(() -> sendReplication(to, Replication.CHANGES, seq, records));
+    }
+
+    /**
+     * Forgets the records no replica is left to receive. They hold absolute
+     * balances, so shipped after a later snapshot they would put it back in time.
+     */
+    private void dropUnshipped() {
+        synchronized (unshipped) {
+            unshipped.clear();
+        }
+    }
+
+    private void sendReplication(List<AID> to, byte kind, long seq, List<byte[]> records) {
+        if (to.isEmpty()) {
+            return;
+        }
+        ACLMessage msg = new ACLMessage(ACLMessage.INFORM);
+        msg.setOntology(Replication.ONTOLOGY);
+        for (AID replica : to) {
+            msg.addReceiver(replica);
+        }
+        msg.setByteSequenceContent(Replication.encode(kind, epoch, seq, records));
+        send(msg);
+    }
+
+    /* ---------------- BULK IMPORT ---------------- */
+
+    /**
+     * Imports the accounts listed in a file (see {@link AccountImport}) on a
+     * background thread, without journaling them one by one: the PINs are
+     * hashed in parallel, then the accounts are added to the store and
+     * persisted by a single checkpoint. Usernames that already exist and
+     * accounts of other shards are skipped, so an import can be repeated.
+     *
+     * @param request the IMPORT message to answer with IMPORTED;created, or null
+     */
+    private void importAccounts(File file, ACLMessage request) {
+        Thread t = new Thread(() -> {
+            Response res;
+            try {
+                long start = System.nanoTime();
+                AccountImport in = new AccountImport();
+                List<Account> read = in.read(file, user -> BankRouter.shardOf(user, shardCount) == shard);
+                // on the checkpointer thread, so it is ordered with the background checkpoints
+                int created = checkpointer.submit(() -> addAndCheckpoint(read)).get();
+                long nanos = System.nanoTime() - start;
+                metrics.recordNanos("import", nanos);
+                System.out.println("Bank: imported " + created + " accounts from " + file
+                        + " in " + nanos / 1_000_000 + " ms (" + (read.size() - created) + " existing, "
+                        + in.skipped() + " other shards, " + in.malformed() + " malformed)");
+                res = Response.of(MessageTypes.IMPORTED, created);
+            } catch (Exception e) {
+                e.printStackTrace();
+                res = Response.of(MessageTypes.ERROR);
+            }
+            if (request != null) {
+                reply(request, res, false);
+            }
+        }, getLocalName() + "-import");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /**
+     * Operations wait until the checkpoint is written: one that changed an
+     * imported account could otherwise be journaled, and acknowledged, for
+     * an account that a crash would lose. For the same reason the accounts
+     * created before a failure are checkpointed too.
+     */
+    private int addAndCheckpoint(List<Account> imported) throws IOException {
+        checkpointLock.writeLock().lock();
+        try {
+            int created = 0;
+            long ledgerSeq = 0;
+            try {
+                for (Account acc : imported) {
+                    if (accounts.create(acc)) {
+                        created++;
+                        // not journaled, so the replicas would not hear of it otherwise
+                        publish(TransactionJournal.createRecord(acc.getUsername(), acc.getPinDigest(), acc.getBalance()));
+                        // the opening entry, unless an import that crashed before its checkpoint wrote it
+                        if (ledger != null && !ledger.hasHistory(acc.getUsername())) {
+                            ledgerSeq = journal.appendToLedger(Ledger.entry(acc.getUsername(),
+                                    MessageTypes.IMPORT, acc.getBalance(), acc.getBalance(), null));
+                        }
+                    }
+                }
+            } finally {
+                if (created > 0) {
+                    if (ledger != null) {
+                        // before the accounts, so no imported account is ever without its opening entry
+                        ledger.sync(ledgerSeq);
+                    }
+                    long segment = journal.rotate();
+                    List<String> postedIds = posted.cut();
+                    accounts.capture(segment).write();
+                    dropSegments(segment, postedIds, ledgerSeq);
+                }
+            }
+            return created;
+        } finally {
+            checkpointLock.writeLock().unlock();
         }
+    }
+
+    /* ---------------- ADMISSION ---------------- */
 
-        if (!acc.withdraw(amount)) {
-            return "INSUFFICIENT_FUNDS;" + acc.getBalance();
+    /** @return 0 to admit the request, otherwise the retry hint in ms for the BUSY reply */
+    private int admission(ACLMessage msg) {
+        long queuedMs = Math.max(0, System.currentTimeMillis() - msg.getPostTimeStamp());
+        metrics.recordNanos("queue.wait", queuedMs * 1_000_000);
+
+        int workerQueue = workerQueueSize();
+        long waitMs = queuedMs + workerQueue * avgServiceNanos.get() / parallelism / 1_000_000;
+        if ((maxQueue > 0 && getCurQueueSize() + workerQueue >= maxQueue)
+                || (maxWaitMs > 0 && waitMs >= maxWaitMs)) {
+            return (int) Math.max(MIN_RETRY_MS, Math.min(waitMs, MAX_RETRY_MS));
         }
+        return 0;
+    }
 
-        saveData();
-        return "WITHDRAW_OK;" + acc.getBalance();
+    private void recordServiceTime(long nanos) {
+        avgServiceNanos.accumulateAndGet(nanos, (avg, sample) -> avg + (sample - avg) / 16);
+    }
+
+    private int workerQueueSize() {
+        return workers instanceof ThreadPoolExecutor ? ((ThreadPoolExecutor) workers).getQueue().size() : 0;
+    }
+
+    private void reply(ACLMessage request, Response res, boolean binary) {
+        ACLMessage reply = request.createReply();
+        Wire.writeResponse(reply, res, binary);
+        Tracing.propagate(request, reply);
+        send(reply);
+    }
+
+    private void stopWorkers() {
+        if (workers == null) {
+            return;
+        }
+        workers.shutdown();
+        try {
+            workers.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
     }
 
     /* ---------------- PERSISTENCE ---------------- */
 
-    @SuppressWarnings("unchecked")
+    /** Every shard keeps its own files, so shards can share a working directory. */
+    private String dataFile(String extension) {
+        return (shardCount > 1 ? "accounts-" + shard : "accounts") + extension;
+    }
+
     private void loadData() {
-        try (ObjectInputStream ois =
-                     new ObjectInputStream(new FileInputStream(DATA_FILE))) {
+        try {
+            if ("mapped".equals(System.getProperty("bank.store"))) {
+                accounts = new MappedAccountStore(new File(dataFile(MAPPED_EXT)));
+                accounts.load();
+                if (accounts.size() == 0) {
+                    importSnapshot();
+                }
+            } else {
+                accounts = new HeapAccountStore(new File(dataFile(DATA_EXT)),
+                        Integer.getInteger("bank.checkpoint.maxDeltas", 8));
+                accounts.load();
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Bank: cannot open account store", e);
+        }
 
-            accounts = (Map<String, Account>) ois.readObject();
-            System.out.println("Bank: loaded " + accounts.size() + " accounts");
+        journal = Boolean.getBoolean("bank.groupCommit")
+                ? new TransactionJournal(new File(dataFile(JOURNAL_EXT)),
+                        Integer.getInteger("bank.groupCommit.maxBatch", 64),
+                        Long.getLong("bank.groupCommit.maxLatencyMs", 5))
+                : new TransactionJournal(new File(dataFile(JOURNAL_EXT)));
+        posted = new PostedEntries(new File(dataFile(POSTED_EXT)),
+                Long.getLong("bank.standin.postedTtlMs", TimeUnit.DAYS.toMillis(7)));
+        try {
+            posted.load();
+            int replayed = journal.replay(accounts.checkpointSegment(), new TransactionJournal.Handler() {
+                @Override
+                public void onCreate(String user, byte[] pinDigest, int balance) {
+                    Account acc = new Account(user, pinDigest, balance);
+                    if (!accounts.create(acc)) {
+                        accounts.update(acc);
+                    }
+                }
 
-        } catch (Exception e) {
-            System.out.println("Bank: no existing data, starting fresh");
-            accounts = new HashMap<>();
+                @Override
+                public void onBalance(String user, int balance) {
+                    Account acc = accounts.get(user);
+                    if (acc != null) {
+                        acc.setBalance(balance);
+                        accounts.update(acc);
+                    }
+                }
+
+                @Override
+                public void onPosted(String id) {
+                    posted.add(id);
+                }
+
+                @Override
+                public void onEntry(Ledger.Entry entry) {
+                    if (ledger != null && entry.seq > ledger.lastSeq()) {
+                        ledger.append(entry);
+                    }
+                }
+            });
+            System.out.println("Bank: replayed " + replayed + " journal records");
+            if (ledger != null) {
+                journal.setLedger(ledger);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Bank: cannot open journal", e);
         }
     }
 
-    private void saveData() {
-        try (ObjectOutputStream oos =
-                     new ObjectOutputStream(new FileOutputStream(DATA_FILE))) {
+    /** One-time migration of the accounts.dat checkpoints into a fresh mapped store. */
+    private void importSnapshot() throws IOException {
+        AccountStore legacy = new HeapAccountStore(new File(dataFile(DATA_EXT)));
+        legacy.load();
+        if (legacy.size() == 0) {
+            return;
+        }
+        legacy.forEach(accounts::create);
+        accounts.capture(legacy.checkpointSegment()).write();
+        System.out.println("Bank: imported " + accounts.size() + " accounts from " + dataFile(DATA_EXT));
+    }
 
-            oos.writeObject(accounts);
-            System.out.println("Bank: data saved");
+    /**
+     * Starts a background checkpoint. The journal rotation and the capture
+     * happen while no operation is running, so the captured state matches the
+     * journal cut exactly; only writing the captured accounts happens off-thread.
+     */
+    private void checkpoint() {
+        if (!checkpointRunning.compareAndSet(false, true)) {
+            return; // previous checkpoint still writing
+        }
+        try {
+            long segment;
+            AccountStore.Checkpoint cp;
+            List<String> postedIds;
+            long ledgerSeq;
+            checkpointLock.writeLock().lock();
+            try {
+                segment = journal.rotate();
+                cp = accounts.capture(segment);
+                postedIds = posted.cut();
+                ledgerSeq = ledger != null ? ledger.lastSeq() : 0;
+            } finally {
+                checkpointLock.writeLock().unlock();
+            }
+            checkpointer.execute(() -> {
+                try {
+                    long start = System.nanoTime();
+                    cp.write();
+                    metrics.recordNanos("checkpoint.write", System.nanoTime() - start);
+                    dropSegments(segment, postedIds, ledgerSeq);
+                } catch (IOException e) {
+                    // the journal segments stay, so nothing is lost
+                    e.printStackTrace();
+                } finally {
+                    checkpointRunning.set(false);
+                }
+            });
+        } catch (IOException e) {
+            checkpointRunning.set(false);
+            e.printStackTrace();
+        }
+    }
 
+    /**
+     * Deletes the journal segments before {@code segment}, once a checkpoint
+     * covering them is written. They also hold the only copy of the stand-in
+     * ids posted and the ledger entries numbered up to {@code ledgerSeq}, so
+     * those go to disk first.
+     */
+    private void dropSegments(long segment, List<String> postedIds, long ledgerSeq) throws IOException {
+        posted.persist(postedIds);
+        if (ledger != null) {
+            ledger.sync(ledgerSeq);
+        }
+        journal.deleteBefore(segment);
+    }
+
+    /**
+     * Writes a final checkpoint and waits for it, used on shutdown. The
+     * capture holds the checkpoint lock like any other, in case a worker is
+     * still running after {@link #stopWorkers()} gave up waiting.
+     */
+    private boolean saveData() {
+        try {
+            long segment;
+            AccountStore.Checkpoint cp;
+            List<String> postedIds;
+            long ledgerSeq;
+            checkpointLock.writeLock().lock();
+            try {
+                segment = journal.rotate();
+                cp = accounts.capture(segment);
+                postedIds = posted.cut();
+                ledgerSeq = ledger != null ? ledger.lastSeq() : 0;
+            } finally {
+                checkpointLock.writeLock().unlock();
+            }
+            checkpointer.submit(() -> {
+                cp.write();
+                dropSegments(segment, postedIds, ledgerSeq);
+                return null;
+            }).get();
+            System.out.println("Bank: data saved");
+            return true;
         } catch (Exception e) {
             e.printStackTrace();
+            return false;
         }
     }
 
     @Override
     protected void takeDown() {
-        saveData();
+        stopWorkers();
+        boolean saved = saveData();
+        if (shutdownRequest != null) {
+            reply(shutdownRequest, Response.of(saved ? MessageTypes.BANK_SHUTDOWN_OK : MessageTypes.ERROR),
+                    Wire.isBinary(shutdownRequest));
+        }
+        checkpointer.shutdown();
+        if (statements != null) {
+            statements.shutdown();
+        }
+        try {
+            if (ledger != null) {
+                ledger.close();
+            }
+            journal.close();
+            posted.close();
+            accounts.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        directory.close();
+        metrics.unregister();
         System.out.println("BankAgent shutting down");
     }
 }
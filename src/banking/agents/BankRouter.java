@@ -0,0 +1,226 @@
+package banking.agents;
+
+import jade.core.AID;
+import jade.domain.FIPAAgentManagement.*;
+
+import banking.util.ServiceDirectory;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Finds the bank shards registered in the DF and routes each request to the
+ * shard that owns its account. The shards are taken from the agent's
+ * {@link ServiceDirectory}; when it has a DF subscription, the routes follow
+ * the registrations without explicit refreshes.
+ *
+ * Accounts are partitioned by {@link #shardOf(String, int)}. String.hashCode
+ * is fixed by the language spec, so every agent, in any JVM, computes the
+ * same owner; its bits are mixed first because similar usernames differ
+ * mostly in the low bits.
+ *
+ * Read replicas ({@link ReplicaAgent}) register under their own service
+ * type; {@link #routeRead(String)} spreads BALANCE over the replicas of the
+ * owning shard once {@link #refreshReplicas()} has found them.
+ */
+public class BankRouter {
+
+    public static final String SERVICE_TYPE = "bank-service";
+    public static final String REPLICA_SERVICE_TYPE = "bank-replica";
+    public static final String PROP_SHARD = "shard";
+    public static final String PROP_SHARDS = "shards";
+
+    private final ServiceDirectory directory;
+    private volatile AID[] shards = new AID[0];
+    /** The replicas of each shard, indexed like {@link #shards}. */
+    private volatile AID[][] replicas = new AID[0][];
+    /** The directory version the routes were built from. */
+    private volatile long builtFrom = -1;
+
+    public BankRouter(ServiceDirectory directory) {
+        this.directory = directory;
+    }
+
+    public static int shardOf(String user, int shardCount) {
+        int h = user.hashCode();
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return Math.floorMod(h, shardCount);
+    }
+
+    /** Extracts the username from a "OP;user;..." request. */
+    public static String userOf(String content) {
+        int start = content.indexOf(';');
+        if (start < 0) {
+            return null;
+        }
+        int end = content.indexOf(';', start + 1);
+        return end < 0 ? content.substring(start + 1) : content.substring(start + 1, end);
+    }
+
+    /* ---------------- DF ---------------- */
+
+    /** Rebuilds the routes if the directory changed since they were built. */
+    private void sync() {
+        if (directory.version() != builtFrom) {
+            refresh();
+            refreshReplicas();
+        }
+    }
+
+    /** @return true if every shard of the bank was found */
+    public boolean refresh() {
+        builtFrom = directory.version();
+        try {
+            List<DFAgentDescription> result = directory.search(SERVICE_TYPE);
+            if (result.isEmpty()) {
+                shards = new AID[0];
+                return false;
+            }
+
+            AID[] found = null;
+            for (DFAgentDescription dfd : result) {
+                ServiceDescription service = (ServiceDescription) dfd.getAllServices().next();
+                int shard = intProperty(service, PROP_SHARD, 0);
+                int count = intProperty(service, PROP_SHARDS, 1);
+                if (found == null) {
+                    found = new AID[count];
+                }
+                if (shard < found.length) {
+                    found[shard] = dfd.getName();
+                }
+            }
+            shards = found;
+
+            for (AID aid : found) {
+                if (aid == null) {
+                    return false;
+                }
+            }
+            return true;
+        } catch (Exception e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    /** @return the number of replicas found */
+    public int refreshReplicas() {
+        try {
+            List<DFAgentDescription> result = directory.search(REPLICA_SERVICE_TYPE);
+            List<List<AID>> found = new ArrayList<>();
+            for (DFAgentDescription dfd : result) {
+                ServiceDescription service = (ServiceDescription) dfd.getAllServices().next();
+                int shard = intProperty(service, PROP_SHARD, 0);
+                while (found.size() <= shard) {
+                    found.add(new ArrayList<>());
+                }
+                found.get(shard).add(dfd.getName());
+            }
+            AID[][] byShard = new AID[found.size()][];
+            for (int i = 0; i < byShard.length; i++) {
+                byShard[i] = found.get(i).toArray(new AID[0]);
+            }
+            replicas = byShard;
+            return result.size();
+        } catch (Exception e) {
+            e.printStackTrace();
+            return 0;
+        }
+    }
+
+    /** @return true if the agent is registered as a read replica of the shard */
+    public static boolean isReplicaOf(ServiceDirectory directory, AID aid, int shard) {
+        for (DFAgentDescription dfd : directory.search(REPLICA_SERVICE_TYPE)) {
+            if (aid.equals(dfd.getName())) {
+                ServiceDescription service = (ServiceDescription) dfd.getAllServices().next();
+                return intProperty(service, PROP_SHARD, 0) == shard;
+            }
+        }
+        return false;
+    }
+
+    private static int intProperty(ServiceDescription sd, String name, int fallback) {
+        Iterator<?> it = sd.getAllProperties();
+        while (it.hasNext()) {
+            Property p = (Property) it.next();
+            if (name.equals(p.getName())) {
+                return Integer.parseInt(String.valueOf(p.getValue()));
+            }
+        }
+        return fallback;
+    }
+
+    /* ---------------- ROUTING ---------------- */
+
+    /** @return the shard owning the user's account, or null if it is not known */
+    public AID route(String user) {
+        sync();
+        AID[] current = shards;
+        if (current.length == 0) {
+            return null;
+        }
+        if (user == null) {
+            return current[0];
+        }
+        return current[shardOf(user, current.length)];
+    }
+
+    /**
+     * @return a replica of the shard owning the user's account, or null if
+     * it has none; the read then goes to {@link #route(String)}
+     */
+    public AID routeRead(String user) {
+        sync();
+        AID[][] current = replicas;
+        int count = shards.length;
+        if (user == null || count == 0) {
+            return null;
+        }
+        int shard = shardOf(user, count);
+        if (shard >= current.length || current[shard].length == 0) {
+            return null;
+        }
+        AID[] candidates = current[shard];
+        return candidates[ThreadLocalRandom.current().nextInt(candidates.length)];
+    }
+
+    /** @return the primary of a shard, or null if it is not known */
+    public AID shard(int index) {
+        sync();
+        AID[] current = shards;
+        return index < current.length ? current[index] : null;
+    }
+
+    /** @return true for a shard or one of its replicas */
+    public boolean isBank(AID aid) {
+        sync();
+        for (AID shard : shards) {
+            if (aid.equals(shard)) {
+                return true;
+            }
+        }
+        return isReplica(aid);
+    }
+
+    public boolean isReplica(AID aid) {
+        sync();
+        for (AID[] ofShard : replicas) {
+            for (AID replica : ofShard) {
+                if (aid.equals(replica)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    public int shardCount() {
+        return shards.length;
+    }
+}
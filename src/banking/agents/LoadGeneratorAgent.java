@@ -0,0 +1,323 @@
+package banking.agents;
+
+import jade.core.AID;
+import jade.core.Agent;
+import jade.core.behaviours.CyclicBehaviour;
+import jade.domain.FIPAAgentManagement.*;
+import jade.lang.acl.ACLMessage;
+
+import banking.metrics.Tracing;
+import banking.protocol.MessageTypes;
+import banking.protocol.Request;
+import banking.protocol.Wire;
+import banking.util.LatencyHistogram;
+import banking.util.ServiceDirectory;
+import banking.util.ZipfDistribution;
+
+import java.util.*;
+
+/**
+ * Headless client that drives the ATMs (or the bank shards directly) at a
+ * fixed arrival rate and reports latency percentiles per operation.
+ *
+ * The load is open-loop: request i is due at start + i / rate whether or
+ * not earlier requests were answered, and its latency is measured from that
+ * due time, so a stalled system shows up as latency rather than as a lower
+ * send rate. Accounts {@code lg0..lg<n-1>} are created first; generators
+ * share them, so a Zipfian key mix concentrates on the same hot accounts.
+ */
+public class LoadGeneratorAgent extends Agent {
+
+    private static final String PIN = "1234";
+    private static final String KEY_PREFIX = "lg";
+    private static final int CREATE_WINDOW = 256;
+    private static final long PROGRESS_MS = 5000;
+
+    private enum Phase { CREATE, RUN, DRAIN }
+
+    private final boolean viaATM = !"bank".equals(System.getProperty("load.target", "atm"));
+    private final double rate = Double.parseDouble(System.getProperty("load.rate", "200"));
+    private final long durationMs = Long.getLong("load.durationMs", 30000);
+    private final int keyCount = Integer.getInteger("load.accounts", 1000);
+    private final long timeoutMs = Long.getLong("load.timeoutMs", 5000);
+
+    private String[] ops;
+    private int[] weights;
+    private int totalWeight;
+    private ZipfDistribution zipf;
+    private final Random random = new Random();
+
+    private BankRouter bank;
+    private List<AID> atms = new ArrayList<>();
+    private int nextATM;
+
+    private Phase phase = Phase.CREATE;
+    private final Map<String, Outstanding> outstanding = new HashMap<>();
+    private final Map<String, OpStats> stats = new LinkedHashMap<>();
+    private long seq;
+    private int created;
+    /** Accounts whose CREATE was rejected with BUSY, sent again before new ones. */
+    private final Deque<String> busyCreates = new ArrayDeque<>();
+    private long runStart;
+    private long sent;
+    private long lastSweep;
+    private long lastProgress;
+
+    @Override
+    protected void setup() {
+        parseMix(System.getProperty("load.mix", "AUTH:20,DEPOSIT:40,WITHDRAW:40"));
+        if ("zipf".equals(System.getProperty("load.distribution", "uniform"))) {
+            zipf = new ZipfDistribution(keyCount,
+                    Double.parseDouble(System.getProperty("load.zipf.s", "0.99")));
+        }
+
+        System.out.println("LoadGenerator " + getLocalName() + ": " + rate + " ops/s for " + durationMs
+                + " ms via " + (viaATM ? "ATMs" : "bank") + ", " + keyCount + " accounts, "
+                + (zipf != null ? "zipf" : "uniform") + " keys");
+
+        addBehaviour(new jade.core.behaviours.OneShotBehaviour() {
+            public void action() {
+                try { Thread.sleep(1000); } catch (InterruptedException e) {}
+                if (findTargets()) {
+                    addBehaviour(new Driver());
+                } else {
+                    System.out.println("LoadGenerator " + getLocalName() + ": no "
+                            + (viaATM ? "ATM" : "bank") + " found, stopping");
+                    doDelete();
+                }
+            }
+        });
+    }
+
+    private void parseMix(String spec) {
+        List<String> names = new ArrayList<>();
+        List<Integer> ws = new ArrayList<>();
+        for (String part : spec.split(",")) {
+            String[] kv = part.trim().split(":");
+            names.add(kv[0].trim().toUpperCase());
+            ws.add(kv.length > 1 ? Integer.parseInt(kv[1].trim()) : 1);
+        }
+        ops = names.toArray(new String[0]);
+        weights = new int[ops.length];
+        for (int i = 0; i < ops.length; i++) {
+            totalWeight += ws.get(i);
+            weights[i] = totalWeight;
+            stats.put(ops[i], new OpStats());
+        }
+    }
+
+    /** Looks the targets up once; the generator does not follow later registrations. */
+    private boolean findTargets() {
+        ServiceDirectory directory = new ServiceDirectory(this);
+        if (!viaATM) {
+            bank = new BankRouter(directory);
+            if (!bank.refresh()) {
+                return false;
+            }
+            bank.refreshReplicas();
+            return true;
+        }
+        for (DFAgentDescription dfd : directory.search("atm-service")) {
+            atms.add(dfd.getName());
+        }
+        return !atms.isEmpty();
+    }
+
+    /* ---------------- DRIVER ---------------- */
+
+    private class Driver extends CyclicBehaviour {
+        @Override
+        public void action() {
+            ACLMessage reply;
+            while ((reply = receive()) != null) {
+                onReply(reply);
+            }
+
+            long now = System.nanoTime();
+            switch (phase) {
+                case CREATE:
+                    while (!busyCreates.isEmpty() && outstanding.size() < CREATE_WINDOW) {
+                        send(MessageTypes.CREATE, busyCreates.poll(), now);
+                    }
+                    while (created < keyCount && outstanding.size() < CREATE_WINDOW) {
+                        send(MessageTypes.CREATE, KEY_PREFIX + created++, now);
+                    }
+                    if (created == keyCount && outstanding.isEmpty() && busyCreates.isEmpty()) {
+                        System.out.println("LoadGenerator " + getLocalName() + ": accounts ready, running");
+                        for (OpStats s : stats.values()) {
+                            s.reset();
+                        }
+                        phase = Phase.RUN;
+                        runStart = lastProgress = now;
+                    }
+                    break;
+
+                case RUN:
+                    long due = (long) ((now - runStart) / 1e9 * rate);
+                    while (sent < due) {
+                        long intended = runStart + (long) (sent * 1e9 / rate);
+                        send(pickOp(), pickUser(), intended);
+                        sent++;
+                    }
+                    if (now - lastProgress >= PROGRESS_MS * 1_000_000) {
+                        lastProgress = now;
+                        System.out.println("LoadGenerator " + getLocalName() + ": sent " + sent
+                                + ", outstanding " + outstanding.size());
+                    }
+                    if (now - runStart >= durationMs * 1_000_000) {
+                        phase = Phase.DRAIN;
+                    }
+                    break;
+
+                case DRAIN:
+                    if (outstanding.isEmpty()) {
+                        report();
+                        doDelete();
+                        return;
+                    }
+                    break;
+            }
+
+            if (now - lastSweep >= 100_000_000L) {
+                lastSweep = now;
+                expire(now);
+            }
+            block(1);
+        }
+    }
+
+    private String pickOp() {
+        int r = random.nextInt(totalWeight);
+        for (int i = 0; i < ops.length; i++) {
+            if (r < weights[i]) {
+                return ops[i];
+            }
+        }
+        return ops[ops.length - 1];
+    }
+
+    private String pickUser() {
+        int k = zipf != null ? zipf.next(random) : random.nextInt(keyCount);
+        return KEY_PREFIX + k;
+    }
+
+    /** Another account; with several shards it may be on another shard and get CROSS_SHARD. */
+    private String transferTarget(String user) {
+        String to = pickUser();
+        return to.equals(user) ? KEY_PREFIX + (Integer.parseInt(user.substring(KEY_PREFIX.length())) + 1) % keyCount : to;
+    }
+
+    private void send(String op, String user, long intendedNanos) {
+        int amount = MessageTypes.CREATE.equals(op) ? 1_000_000 : 1 + random.nextInt(100);
+        Request req = new Request(op, user, PIN, amount,
+                MessageTypes.TRANSFER.equals(op) ? transferTarget(user) : null);
+
+        ACLMessage msg = new ACLMessage(ACLMessage.REQUEST);
+        String conversationId = getLocalName() + "-" + (++seq);
+        msg.setConversationId(conversationId);
+        if (viaATM) {
+            msg.addReceiver(atms.get(nextATM++ % atms.size()));
+            msg.setContent(req.toText());
+        } else {
+            // balance checks go to a read replica if there is one; a STALE reply is counted, not retried
+            AID replica = MessageTypes.BALANCE.equals(op) ? bank.routeRead(user) : null;
+            msg.addReceiver(replica != null ? replica : bank.route(user));
+            Wire.writeRequest(msg, req, true);
+        }
+        outstanding.put(conversationId, new Outstanding(op, user, intendedNanos));
+        Tracing.start(msg);
+        send(msg);
+    }
+
+    private void onReply(ACLMessage msg) {
+        Outstanding o = outstanding.remove(msg.getConversationId());
+        if (o == null) {
+            return; // already counted as a timeout
+        }
+        String traceId = Tracing.id(msg);
+        if (traceId != null) {
+            long now = Tracing.nowMicros();
+            Tracing.inbound(msg, getLocalName(), "user.return", now);
+            Tracing.span(traceId, getLocalName(), "user.total", Tracing.startedAt(msg), now);
+        }
+        String status;
+        try {
+            status = Wire.readResponse(msg).status;
+        } catch (RuntimeException e) {
+            status = MessageTypes.ERROR;
+        }
+        if (phase == Phase.CREATE && MessageTypes.BUSY.equals(status)) {
+            busyCreates.add(o.user);
+            return;
+        }
+        OpStats s = stats.get(o.op);
+        if (s != null && phase != Phase.CREATE) {
+            s.latency.recordNanos(System.nanoTime() - o.intendedNanos);
+            s.statuses.merge(status, 1, Integer::sum);
+        }
+    }
+
+    private void expire(long now) {
+        Iterator<Outstanding> it = outstanding.values().iterator();
+        while (it.hasNext()) {
+            Outstanding o = it.next();
+            if (now - o.intendedNanos > timeoutMs * 1_000_000) {
+                it.remove();
+                OpStats s = stats.get(o.op);
+                if (s != null && phase != Phase.CREATE) {
+                    s.timeouts++;
+                }
+            }
+        }
+    }
+
+    /* ---------------- REPORT ---------------- */
+
+    private void report() {
+        double seconds = durationMs / 1000.0;
+        LatencyHistogram all = new LatencyHistogram();
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("%-10s %8s %9s %9s %9s %9s %9s %8s  %s%n",
+                "op", "count", "ops/s", "p50 ms", "p99 ms", "p99.9 ms", "max ms", "timeouts", "statuses"));
+        for (Map.Entry<String, OpStats> e : stats.entrySet()) {
+            OpStats s = e.getValue();
+            all.add(s.latency);
+            sb.append(row(e.getKey(), s.latency, seconds)).append(String.format(" %8d  %s%n", s.timeouts, s.statuses));
+        }
+        sb.append(row("TOTAL", all, seconds)).append(String.format("%n"));
+
+        System.out.println("LoadGenerator " + getLocalName() + ": target " + rate + " ops/s, achieved "
+                + String.format("%.1f", all.count() / seconds) + " ops/s over " + seconds + " s");
+        System.out.print(sb);
+    }
+
+    private static String row(String name, LatencyHistogram h, double seconds) {
+        return String.format("%-10s %8d %9.1f %9.2f %9.2f %9.2f %9.2f", name, h.count(), h.count() / seconds,
+                h.percentile(50) / 1000.0, h.percentile(99) / 1000.0, h.percentile(99.9) / 1000.0,
+                h.max() / 1000.0);
+    }
+
+    private static class Outstanding {
+        final String op;
+        final String user;
+        final long intendedNanos;
+
+        Outstanding(String op, String user, long intendedNanos) {
+            this.op = op;
+            this.user = user;
+            this.intendedNanos = intendedNanos;
+        }
+    }
+
+    private static class OpStats {
+        final LatencyHistogram latency = new LatencyHistogram();
+        final Map<String, Integer> statuses = new TreeMap<>();
+        long timeouts;
+
+        void reset() {
+            latency.reset();
+            statuses.clear();
+            timeouts = 0;
+        }
+    }
+}
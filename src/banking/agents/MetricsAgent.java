@@ -0,0 +1,127 @@
+package banking.agents;
+
+import jade.core.Agent;
+import jade.core.behaviours.CyclicBehaviour;
+import jade.domain.DFService;
+import jade.domain.FIPAAgentManagement.*;
+import jade.lang.acl.ACLMessage;
+
+import banking.metrics.AgentMetrics;
+import banking.metrics.MetricsReporter;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Collects the metrics snapshots the agents publish through
+ * {@link MetricsReporter} and answers queries for them over ACL.
+ *
+ * A REQUEST or QUERY_REF with content "METRICS" gets an INFORM with the latest
+ * snapshot of every agent; "METRICS;agent" gets only that agent's, or a
+ * FAILURE "UNKNOWN_AGENT". Each snapshot starts with a "# agent ageMs" line.
+ * The same numbers are available per agent as JMX MBeans.
+ */
+public class MetricsAgent extends Agent {
+
+    public static final String QUERY = "METRICS";
+
+    /** Agent local name to its latest snapshot. Used only on the agent thread. */
+    private final Map<String, Snapshot> snapshots = new TreeMap<>();
+    private AgentMetrics metrics;
+
+    @Override
+    protected void setup() {
+        System.out.println("MetricsAgent started: " + getLocalName());
+
+        DFAgentDescription dfd = new DFAgentDescription();
+        dfd.setName(getAID());
+        ServiceDescription sd = new ServiceDescription();
+        sd.setType(MetricsReporter.SERVICE_TYPE);
+        sd.setName(getLocalName());
+        dfd.addServices(sd);
+        try {
+            DFService.register(this, dfd);
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+
+        metrics = new AgentMetrics(getLocalName());
+        metrics.gauge("agents", snapshots::size);
+        metrics.register();
+
+        addBehaviour(new CyclicBehaviour() {
+            @Override
+            public void action() {
+                ACLMessage msg = receive();
+                if (msg == null) {
+                    block();
+                    return;
+                }
+                String content = msg.getContent();
+                if ("SHUTDOWN".equals(content)) {
+                    System.out.println("MetricsAgent shutting down");
+                    doDelete();
+                } else if (msg.getPerformative() == ACLMessage.INFORM
+                        && MetricsReporter.CONVERSATION.equals(msg.getConversationId())) {
+                    snapshots.put(msg.getSender().getLocalName(),
+                            new Snapshot(content, System.currentTimeMillis()));
+                    metrics.increment("reports");
+                } else if (content != null && content.startsWith(QUERY)) {
+                    answer(msg, content);
+                }
+            }
+        });
+    }
+
+    @Override
+    protected void takeDown() {
+        metrics.unregister();
+        try {
+            DFService.deregister(this);
+        } catch (Exception e) {
+            // platform is shutting down
+        }
+    }
+
+    private void answer(ACLMessage query, String content) {
+        ACLMessage reply = query.createReply();
+        long now = System.currentTimeMillis();
+        int p = content.indexOf(';');
+
+        if (p < 0) {
+            StringBuilder sb = new StringBuilder();
+            for (Map.Entry<String, Snapshot> e : snapshots.entrySet()) {
+                e.getValue().appendTo(sb, e.getKey(), now);
+            }
+            reply.setPerformative(ACLMessage.INFORM);
+            reply.setContent(sb.toString());
+        } else {
+            String agent = content.substring(p + 1).trim();
+            Snapshot s = snapshots.get(agent);
+            if (s == null) {
+                reply.setPerformative(ACLMessage.FAILURE);
+                reply.setContent("UNKNOWN_AGENT");
+            } else {
+                StringBuilder sb = new StringBuilder();
+                s.appendTo(sb, agent, now);
+                reply.setPerformative(ACLMessage.INFORM);
+                reply.setContent(sb.toString());
+            }
+        }
+        send(reply);
+    }
+
+    private static class Snapshot {
+        final String text;
+        final long receivedAt;
+
+        Snapshot(String text, long receivedAt) {
+            this.text = text;
+            this.receivedAt = receivedAt;
+        }
+
+        void appendTo(StringBuilder sb, String agent, long now) {
+            sb.append("# ").append(agent).append(' ').append(now - receivedAt).append("ms\n").append(text);
+        }
+    }
+}
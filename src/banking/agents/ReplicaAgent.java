@@ -0,0 +1,356 @@
+package banking.agents;
+
+import jade.core.AID;
+import jade.core.Agent;
+import jade.core.behaviours.CyclicBehaviour;
+import jade.core.behaviours.TickerBehaviour;
+import jade.domain.DFService;
+import jade.domain.FIPAAgentManagement.*;
+import jade.lang.acl.ACLMessage;
+
+import banking.metrics.AgentMetrics;
+import banking.metrics.MetricsReporter;
+import banking.metrics.Tracing;
+import banking.model.Account;
+import banking.persistence.TransactionJournal;
+import banking.protocol.MessageTypes;
+import banking.protocol.Replication;
+import banking.protocol.Request;
+import banking.protocol.Response;
+import banking.protocol.Wire;
+import banking.util.SecurityUtil;
+import banking.util.ServiceDirectory;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Read replica of one bank shard: keeps a copy of the shard's accounts, fed
+ * by the journal records its primary ships (see
+ * {@link Replication}), and answers BALANCE from it so balance checks do not
+ * queue behind the writes on the primary.
+ *
+ * Reads are served only while the replica is known to be current to within
+ * {@code replica.maxStalenessMs}: every message from the primary says which
+ * changes it has sent, and the replica is fresh when it has applied all of
+ * them. Otherwise, and when the answer could be wrong because a change has
+ * not arrived yet (an unknown account), the reply is STALE and the client
+ * asks the primary. Session tokens stay on the primary too, so a read with
+ * a token is answered STALE. All other operations stay on the primary.
+ *
+ * Everything runs on the agent thread.
+ */
+public class ReplicaAgent extends Agent {
+
+    private static final long RENEW_MS = 1000;
+
+    private int shard = 0;
+    private int shardCount = 1;
+
+    private final ServiceDirectory directory = new ServiceDirectory(this);
+    private BankRouter router;
+    private AID primary;
+    private final long maxStalenessMs = Long.getLong("replica.maxStalenessMs", 1000);
+
+    private final Map<String, Account> accounts = new HashMap<>();
+
+    /* Replication state: the primary's epoch, the last seq applied and CHANGES that arrived early. */
+    private long epoch;
+    private boolean snapshotting;
+    private boolean loaded;
+    private long appliedSeq;
+    private final TreeMap<Long, Replication.Message> early = new TreeMap<>();
+    /** When the replica was last known to have every change the primary had sent. */
+    private long freshAt;
+    /** When anything was last heard from the primary. */
+    private long heardAt;
+    private long subscribedAt;
+
+    private AgentMetrics metrics;
+
+    @Override
+    protected void setup() {
+        Object[] args = getArguments();
+        if (args != null && args.length >= 2) {
+            shard = Integer.parseInt(String.valueOf(args[0]));
+            shardCount = Integer.parseInt(String.valueOf(args[1]));
+        }
+        System.out.println("ReplicaAgent started (shard " + shard + "/" + shardCount + ")");
+
+        router = new BankRouter(directory);
+        registerInDF();
+        directory.subscribe();
+
+        metrics = new AgentMetrics(getLocalName());
+        metrics.gauge("accounts", accounts::size);
+        metrics.gauge("replication.lagMs", () -> loaded ? System.currentTimeMillis() - freshAt : -1);
+        metrics.register();
+        addBehaviour(new MetricsReporter(this, metrics, directory));
+
+        addBehaviour(new TickerBehaviour(this, RENEW_MS) {
+            @Override
+            protected void onTick() {
+                maintainSubscription();
+            }
+        });
+
+        addBehaviour(new CyclicBehaviour() {
+            @Override
+            public void action() {
+                ACLMessage msg = receive();
+                if (msg != null) {
+                    handleMessage(msg);
+                } else {
+                    block();
+                }
+            }
+        });
+
+        maintainSubscription();
+    }
+
+    /* ---------------- DF ---------------- */
+
+    private void registerInDF() {
+        try {
+            DFAgentDescription dfd = new DFAgentDescription();
+            dfd.setName(getAID());
+
+            ServiceDescription sd = new ServiceDescription();
+            sd.setType(BankRouter.REPLICA_SERVICE_TYPE);
+            sd.setName("CentralBank-replica-" + shard);
+            sd.addProperties(new Property(BankRouter.PROP_SHARD, String.valueOf(shard)));
+            sd.addProperties(new Property(BankRouter.PROP_SHARDS, String.valueOf(shardCount)));
+
+            dfd.addServices(sd);
+            DFService.register(this, dfd);
+
+            System.out.println("ReplicaAgent registered in DF");
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    /* ---------------- SUBSCRIPTION ---------------- */
+
+    /**
+     * Renews the subscription, or subscribes again (to a primary looked up
+     * anew) when the primary has been silent for several staleness bounds,
+     * e.g. because it restarted or dropped the subscription.
+     */
+    private void maintainSubscription() {
+        long now = System.currentTimeMillis();
+        long silence = Math.max(3 * maxStalenessMs, 2 * RENEW_MS);
+        if (primary != null && now - heardAt <= silence) {
+            sendToPrimary(ACLMessage.CONFIRM);
+            return;
+        }
+        if (primary != null && now - subscribedAt <= silence) {
+            return; // a snapshot may still be on its way
+        }
+        router.refresh();
+        primary = router.shard(shard);
+        if (primary == null) {
+            return;
+        }
+        loaded = false;
+        snapshotting = false;
+        subscribedAt = now;
+        sendToPrimary(ACLMessage.SUBSCRIBE);
+        System.out.println("Replica: subscribing to " + primary.getLocalName());
+    }
+
+    private void sendToPrimary(int performative) {
+        ACLMessage msg = new ACLMessage(performative);
+        msg.addReceiver(primary);
+        msg.setOntology(Replication.ONTOLOGY);
+        send(msg);
+    }
+
+    private void onReplication(ACLMessage msg) {
+        Replication.Message m;
+        try {
+            m = Replication.decode(msg.getByteSequenceContent());
+        } catch (IllegalArgumentException e) {
+            metrics.increment("replication.malformed");
+            return;
+        }
+        if (!msg.getSender().equals(primary)) {
+            return; // from a primary this replica has left
+        }
+        heardAt = System.currentTimeMillis();
+
+        if (m.kind == Replication.SNAPSHOT || m.kind == Replication.SNAPSHOT_END) {
+            if (loaded) {
+                return;
+            }
+            if (!snapshotting) {
+                startSnapshot(m.epoch);
+            }
+            if (m.kind == Replication.SNAPSHOT) {
+                applyAll(m);
+                return;
+            }
+            snapshotting = false;
+            loaded = true;
+            appliedSeq = m.seq;
+            early.headMap(m.seq, true).clear();
+            applyEarly();
+            freshAt = heardAt;
+            System.out.println("Replica: loaded " + accounts.size() + " accounts at seq " + m.seq);
+            return;
+        }
+        if (m.epoch != epoch || !(loaded || snapshotting)) {
+            if (loaded) {
+                // the primary restarted: its seqs start over, so only a new snapshot helps
+                System.out.println("Replica: primary restarted, subscribing again");
+                loaded = false;
+                heardAt = 0;
+                subscribedAt = 0;
+            }
+            return;
+        }
+
+        if (m.kind == Replication.CHANGES && m.seq > appliedSeq) {
+            early.put(m.seq, m);
+            if (loaded) {
+                applyEarly();
+            }
+        } else if (m.kind != Replication.CHANGES && m.kind != Replication.HEARTBEAT) {
+            metrics.increment("replication.malformed");
+            return;
+        }
+        if (loaded && appliedSeq >= m.seq) {
+            freshAt = heardAt;
+        }
+    }
+
+    private void startSnapshot(long newEpoch) {
+        snapshotting = true;
+        epoch = newEpoch;
+        appliedSeq = 0;
+        early.clear();
+        accounts.clear();
+    }
+
+    /** Applies the buffered CHANGES that follow appliedSeq without a gap. */
+    private void applyEarly() {
+        Map.Entry<Long, Replication.Message> next;
+        while ((next = early.firstEntry()) != null && next.getKey() == appliedSeq + 1) {
+            early.pollFirstEntry();
+            applyAll(next.getValue());
+            appliedSeq = next.getKey();
+        }
+    }
+
+    private void applyAll(Replication.Message m) {
+        for (byte[] record : m.records) {
+            try {
+                TransactionJournal.decode(record, applier);
+            } catch (IOException e) {
+                metrics.increment("replication.malformed");
+                e.printStackTrace();
+            }
+        }
+        metrics.increment("replication.messages");
+    }
+
+    private final TransactionJournal.Handler applier = new TransactionJournal.Handler() {
+        @Override
+        public void onCreate(String user, byte[] pinDigest, int balance) {
+            accounts.put(user, new Account(user, pinDigest, balance));
+        }
+
+        @Override
+        public void onBalance(String user, int balance) {
+            Account acc = accounts.get(user);
+            if (acc != null) {
+                acc.setBalance(balance);
+            }
+        }
+    };
+
+    /* ---------------- MESSAGE HANDLING ---------------- */
+
+    private void handleMessage(ACLMessage msg) {
+        if (directory.handle(msg)) {
+            return;
+        }
+        if (Replication.ONTOLOGY.equals(msg.getOntology())) {
+            onReplication(msg);
+            return;
+        }
+        long receivedAt = System.nanoTime();
+        Tracing.inbound(msg, getLocalName(), "replica.inbound", Tracing.micros(receivedAt));
+        boolean binary = Wire.isBinary(msg);
+        Request req;
+        try {
+            req = Wire.readRequest(msg);
+        } catch (RuntimeException e) {
+            metrics.increment("requests.malformed");
+            reply(msg, Response.of(MessageTypes.ERROR), binary);
+            return;
+        }
+
+        if (MessageTypes.SHUTDOWN.equals(req.op)) {
+            doDelete();
+            return;
+        }
+
+        Response res = execute(req);
+        reply(msg, res, binary);
+        metrics.increment("status." + res.status);
+        metrics.recordNanos("op." + req.op, System.nanoTime() - receivedAt);
+    }
+
+    private Response execute(Request req) {
+        if (!MessageTypes.BALANCE.equals(req.op)) {
+            return Response.of(MessageTypes.UNKNOWN_OPERATION);
+        }
+        if (req.user == null) {
+            return Response.of(MessageTypes.ERROR);
+        }
+        if (BankRouter.shardOf(req.user, shardCount) != shard) {
+            return Response.of(MessageTypes.WRONG_SHARD);
+        }
+        if (!loaded || System.currentTimeMillis() - freshAt > maxStalenessMs) {
+            return Response.of(MessageTypes.STALE);
+        }
+
+        if (req.hasToken()) {
+            return Response.of(MessageTypes.STALE); // only the primary knows the sessions
+        }
+
+        Account acc = accounts.get(req.user);
+        if (acc == null) {
+            return Response.of(MessageTypes.STALE); // perhaps created after the last change received
+        }
+        return SecurityUtil.verifyPIN(req.pin, acc.getPinDigest())
+                ? Response.of(MessageTypes.BALANCE_OK, acc.getBalance())
+                : Response.of(MessageTypes.AUTH_FAIL);
+    }
+
+    private void reply(ACLMessage request, Response res, boolean binary) {
+        ACLMessage reply = request.createReply();
+        Wire.writeResponse(reply, res, binary);
+        Tracing.propagate(request, reply);
+        send(reply);
+    }
+
+    @Override
+    protected void takeDown() {
+        if (primary != null) {
+            sendToPrimary(ACLMessage.CANCEL);
+        }
+        directory.close();
+        try {
+            DFService.deregister(this);
+        } catch (Exception e) {
+            // the platform is going down
+        }
+        metrics.unregister();
+        System.out.println("ReplicaAgent shutting down");
+    }
+}
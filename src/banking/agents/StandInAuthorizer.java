@@ -0,0 +1,166 @@
+package banking.agents;
+
+import banking.protocol.MessageTypes;
+import banking.protocol.Request;
+import banking.protocol.Response;
+import banking.protocol.StandIn;
+import banking.util.SecurityUtil;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Lets an ATM approve transactions without asking the bank.
+ *
+ * The ATM learns an account from the bank's replies: an AUTH_OK for a PIN
+ * entered at this ATM gives the PIN digest, the session token and the
+ * balance; later replies refresh the balance. For such an account, while the
+ * cached data is younger than the TTL, the ATM approves a deposit up to the
+ * floor limit, and a withdrawal up to the floor limit as long as the stand-in
+ * withdrawals the bank has not posted yet stay within the risk limit and the
+ * estimated balance does not go negative. The bank refuses larger entries
+ * (OVER_LIMIT), so its {@code bank.standin.floorLimit} must not be below this one. Approved transactions are posted to the bank later;
+ * its answers replace the cached balance.
+ *
+ * Used only on the ATM agent thread.
+ */
+public class StandInAuthorizer {
+
+    private final int floorLimit;
+    private final int riskLimit;
+    private final long ttlMs;
+    private final Map<String, Known> accounts = new HashMap<>();
+
+    public StandInAuthorizer(int floorLimit, int riskLimit, long ttlMs) {
+        this.floorLimit = floorLimit;
+        this.riskLimit = riskLimit;
+        this.ttlMs = ttlMs;
+    }
+
+    /**
+     * Approves the request locally if the rules allow it.
+     *
+     * @return the transaction to queue for the bank, or null if the bank must decide
+     */
+    public StandIn.Entry approve(Request req, String id) {
+        boolean deposit = MessageTypes.DEPOSIT.equals(req.op);
+        if ((!deposit && !MessageTypes.WITHDRAW.equals(req.op)) || req.amount <= 0 || req.amount > floorLimit) {
+            return null;
+        }
+        Known k = accounts.get(req.user);
+        if (k == null || k.pinDigest == null || System.currentTimeMillis() - k.refreshedAt > ttlMs) {
+            return null;
+        }
+        boolean authorized = req.hasToken()
+                ? req.token().equals(k.token)
+                : SecurityUtil.verifyPIN(req.pin, k.pinDigest);
+        if (!authorized) {
+            return null; // perhaps the PIN changed; the bank knows
+        }
+        if (!deposit && (k.unpostedWithdrawals + req.amount > riskLimit
+                || k.balance() < req.amount)) {
+            return null;
+        }
+
+        StandIn.Entry e = new StandIn.Entry(id, req.op, req.user, req.amount);
+        k.add(e, 1);
+        return e;
+    }
+
+    /** Takes back an approval that could not be queued. */
+    public void undo(StandIn.Entry e) {
+        Known k = accounts.get(e.user);
+        if (k != null) {
+            k.add(e, -1);
+        }
+    }
+
+    /** The reply the user gets for an approved transaction. */
+    public Response response(StandIn.Entry e) {
+        String status = MessageTypes.WITHDRAW.equals(e.op) ? MessageTypes.WITHDRAW_OK : MessageTypes.DEPOSIT_OK;
+        return Response.of(status, accounts.get(e.user).balance());
+    }
+
+    /** A transaction queued before the ATM restarted: it still counts against the account. */
+    public void restore(StandIn.Entry e) {
+        accounts.computeIfAbsent(e.user, u -> new Known()).add(e, 1);
+    }
+
+    /** Learns from the bank's reply to a request forwarded online. */
+    public void learn(Request req, Response res) {
+        if (req.user == null) {
+            return;
+        }
+        if (MessageTypes.AUTH_OK.equals(res.status) && !req.hasToken()) {
+            Known k = accounts.computeIfAbsent(req.user, u -> new Known());
+            k.pinDigest = SecurityUtil.hashPIN(req.pin);
+            k.token = res.token;
+            k.refresh(res.balance);
+        } else if (MessageTypes.AUTH_FAIL.equals(res.status)) {
+            Known k = accounts.get(req.user);
+            if (k != null) {
+                k.pinDigest = null; // token expired or PIN changed: only the bank decides now
+                k.token = null;
+                forgetIfIdle(req.user, k);
+            }
+        } else if (res.hasBalance) {
+            Known k = accounts.get(req.user);
+            if (k != null) {
+                k.refresh(res.balance);
+            }
+        }
+    }
+
+    /** Reconciles a transaction the bank has posted; its reply carries the new balance. */
+    public void posted(StandIn.Entry e, Response res) {
+        Known k = accounts.get(e.user);
+        if (k == null) {
+            return;
+        }
+        k.add(e, -1);
+        if (res.hasBalance) {
+            k.bankBalance = res.balance;
+        }
+        forgetIfIdle(e.user, k);
+    }
+
+    /** Drops accounts whose cached data has expired and that have nothing left to post. */
+    public void sweep() {
+        long now = System.currentTimeMillis();
+        accounts.values().removeIf(k -> now - k.refreshedAt > ttlMs
+                && k.unpostedDelta == 0 && k.unpostedWithdrawals == 0);
+    }
+
+    private void forgetIfIdle(String user, Known k) {
+        if (k.pinDigest == null && k.unpostedDelta == 0 && k.unpostedWithdrawals == 0) {
+            accounts.remove(user);
+        }
+    }
+
+    private static class Known {
+        byte[] pinDigest;
+        String token;
+        /** Last balance the bank reported. */
+        int bankBalance;
+        long refreshedAt;
+        /** Sum of the stand-in transactions the bank has not posted yet. */
+        int unpostedDelta;
+        int unpostedWithdrawals;
+
+        int balance() {
+            return bankBalance + unpostedDelta;
+        }
+
+        void refresh(int balance) {
+            bankBalance = balance;
+            refreshedAt = System.currentTimeMillis();
+        }
+
+        void add(StandIn.Entry e, int sign) {
+            unpostedDelta += sign * e.delta();
+            if (MessageTypes.WITHDRAW.equals(e.op)) {
+                unpostedWithdrawals += sign * e.amount;
+            }
+        }
+    }
+}
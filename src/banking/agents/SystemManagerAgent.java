@@ -2,12 +2,17 @@ package banking.agents;
 
 import jade.core.Agent;
 import jade.core.AID;
-import jade.domain.DFService;
 import jade.domain.FIPAAgentManagement.*;
 import jade.lang.acl.ACLMessage;
 
+import banking.metrics.MetricsReporter;
+import banking.util.ServiceDirectory;
+
 public class SystemManagerAgent extends Agent {
 
+    // used once, at shutdown: the directory is not subscribed and searches the DF
+    private final ServiceDirectory directory = new ServiceDirectory(this);
+
     @Override
     protected void setup() {
         System.out.println("SystemManagerAgent started");
@@ -17,29 +22,21 @@ public class SystemManagerAgent extends Agent {
         System.out.println("SystemManager: initiating shutdown");
 
         sendShutdownToService("bank-service");
+        sendShutdownToService(BankRouter.REPLICA_SERVICE_TYPE);
         sendShutdownToService("atm-service");
+        sendShutdownToService(AdBrokerAgent.SERVICE_TYPE);
         sendShutdownToService("user-service");
+        sendShutdownToService(MetricsReporter.SERVICE_TYPE);
 
         doDelete();
     }
 
     private void sendShutdownToService(String serviceType) {
-        try {
-            DFAgentDescription template = new DFAgentDescription();
-            ServiceDescription sd = new ServiceDescription();
-            sd.setType(serviceType);
-            template.addServices(sd);
-
-            DFAgentDescription[] result = DFService.search(this, template);
-
-            for (DFAgentDescription dfd : result) {
-                ACLMessage msg = new ACLMessage(ACLMessage.INFORM);
-                msg.setContent("SHUTDOWN");
-                msg.addReceiver(dfd.getName());
-                send(msg);
-            }
-        } catch (Exception e) {
-            e.printStackTrace();
+        for (DFAgentDescription dfd : directory.search(serviceType)) {
+            ACLMessage msg = new ACLMessage(ACLMessage.INFORM);
+            msg.setContent("SHUTDOWN");
+            msg.addReceiver(dfd.getName());
+            send(msg);
         }
     }
 }
@@ -4,21 +4,39 @@ import jade.core.Agent;
 import jade.core.AID;
 import jade.core.behaviours.CyclicBehaviour;
 import jade.core.behaviours.OneShotBehaviour;
+import jade.core.behaviours.TickerBehaviour;
 import jade.domain.DFService;
 import jade.domain.FIPAAgentManagement.*;
 import jade.lang.acl.ACLMessage;
+import jade.lang.acl.MessageTemplate;
 
 import banking.gui.*;
+import banking.metrics.Tracing;
+import banking.protocol.MessageTypes;
+import banking.util.ServiceDirectory;
 
 import javax.swing.SwingUtilities;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class UserAgent extends Agent {
 
-    private AID bankAID;
+    /** Conversation id of GET_AD requests, so the ATM UI can tell the ad from bank replies. */
+    public static final String AD_CONVERSATION = "ad";
+
+    private final ServiceDirectory directory = new ServiceDirectory(this);
+    private BankRouter bank;
     private UserGUI currentGUI;
 
+    /** Balance checks sent to a read replica, by conversation id, in case it answers STALE or not at all. */
+    private static final String READ_PREFIX = "read-";
+    private final Map<String, PendingRead> replicaReads = new ConcurrentHashMap<>();
+    private final AtomicLong readSeq = new AtomicLong();
+    private final long replicaTimeoutMs = Long.getLong("user.replicaTimeoutMs", 1000);
+
     @Override
     protected void setup() {
         System.out.println("UserAgent started: " + getLocalName());
@@ -39,6 +57,7 @@ public class UserAgent extends Agent {
         } catch (Exception e) {
             e.printStackTrace();
         }
+        directory.subscribe();
 
         /* ---------------- FIND BANK ---------------- */
 
@@ -64,6 +83,9 @@ public class UserAgent extends Agent {
                     block();
                     return;
                 }
+                if (directory.handle(msg)) {
+                    return;
+                }
 
                 if ("SHUTDOWN".equals(msg.getContent())) {
                     System.out.println("UserAgent shutting down");
@@ -72,10 +94,30 @@ public class UserAgent extends Agent {
                         SwingUtilities.invokeLater(() -> currentGUI.dispose());
                     }
 
+                    directory.close();
                     doDelete();
                     return;
                 }
 
+                String conversationId = msg.getConversationId();
+                if (conversationId != null && conversationId.startsWith(READ_PREFIX)) {
+                    PendingRead read = replicaReads.remove(conversationId);
+                    if (read == null) {
+                        return; // too late: the shard has been asked meanwhile
+                    }
+                    if (MessageTypes.STALE.equals(msg.getContent())) {
+                        sendToShard(read.content); // the replica is behind: ask the shard itself
+                        return;
+                    }
+                }
+
+                String traceId = Tracing.id(msg);
+                if (traceId != null) {
+                    long now = Tracing.nowMicros();
+                    Tracing.inbound(msg, getLocalName(), "user.return", now);
+                    Tracing.span(traceId, getLocalName(), "user.total", Tracing.startedAt(msg), now);
+                }
+
                 if (currentGUI != null) {
                     SwingUtilities.invokeLater(() ->
                         currentGUI.processBankResponse(msg)
@@ -84,6 +126,15 @@ public class UserAgent extends Agent {
             }
         });
 
+        /* ---------------- REPLICA READS ---------------- */
+
+        addBehaviour(new TickerBehaviour(this, Math.max(1, replicaTimeoutMs / 2)) {
+            @Override
+            protected void onTick() {
+                expireReplicaReads();
+            }
+        });
+
         /* ---------------- START UI ---------------- */
 
         SwingUtilities.invokeLater(() -> openMainMenu());
@@ -138,28 +189,66 @@ public class UserAgent extends Agent {
        ================================================== */
 
     private void findBank() {
-        try {
-            DFAgentDescription template = new DFAgentDescription();
-            ServiceDescription sd = new ServiceDescription();
-            sd.setType("bank-service");
-            template.addServices(sd);
-
-            DFAgentDescription[] result = DFService.search(this, template);
-            if (result.length > 0) {
-                bankAID = result[0].getName();
-                System.out.println("UserAgent found Bank: " + bankAID.getLocalName());
-            }
-        } catch (Exception e) {
-            e.printStackTrace();
+        bank = new BankRouter(directory);
+        if (bank.refresh()) {
+            System.out.println("UserAgent found Bank: " + bank.shardCount() + " shard(s)");
+            bank.refreshReplicas();
         }
     }
 
     public void sendToBank(String content) {
-        if (bankAID == null) return;
+        if (bank == null) return;
+
+        if (content.startsWith(MessageTypes.BALANCE + ";")) {
+            AID replica = bank.routeRead(BankRouter.userOf(content));
+            if (replica != null) {
+                String conversationId = READ_PREFIX + readSeq.incrementAndGet();
+                replicaReads.put(conversationId, new PendingRead(content, System.currentTimeMillis()));
+                ACLMessage msg = new ACLMessage(ACLMessage.REQUEST);
+                msg.addReceiver(replica);
+                msg.setContent(content);
+                msg.setConversationId(conversationId);
+                Tracing.start(msg);
+                send(msg);
+                return;
+            }
+        }
+        sendToShard(content);
+    }
+
+    /** A replica that has not answered in time may be gone: the shard gets the request instead. */
+    private void expireReplicaReads() {
+        long now = System.currentTimeMillis();
+        for (Map.Entry<String, PendingRead> e : replicaReads.entrySet()) {
+            PendingRead read = e.getValue();
+            if (now - read.sentAt >= replicaTimeoutMs && replicaReads.remove(e.getKey(), read)) {
+                sendToShard(read.content);
+            }
+        }
+    }
+
+    private static class PendingRead {
+        final String content;
+        final long sentAt;
+
+        PendingRead(String content, long sentAt) {
+            this.content = content;
+            this.sentAt = sentAt;
+        }
+    }
+
+    private void sendToShard(String content) {
+        String user = BankRouter.userOf(content);
+        AID shard = bank.route(user);
+        if (shard == null && bank.refresh()) {
+            shard = bank.route(user);
+        }
+        if (shard == null) return;
 
         ACLMessage msg = new ACLMessage(ACLMessage.REQUEST);
-        msg.addReceiver(bankAID);
+        msg.addReceiver(shard);
         msg.setContent(content);
+        Tracing.start(msg);
         send(msg);
     }
 
@@ -171,23 +260,22 @@ public class UserAgent extends Agent {
         ACLMessage msg = new ACLMessage(ACLMessage.REQUEST);
         msg.addReceiver(new AID(atmName, AID.ISLOCALNAME));
         msg.setContent(content);
+        Tracing.start(msg);
+        send(msg);
+    }
+
+    public void requestAd(String atmName) {
+        ACLMessage msg = new ACLMessage(ACLMessage.REQUEST);
+        msg.addReceiver(new AID(atmName, AID.ISLOCALNAME));
+        msg.setConversationId(AD_CONVERSATION);
+        msg.setContent("GET_AD");
         send(msg);
     }
 
     public List<String> getAvailableATMs() {
         List<String> atms = new ArrayList<>();
-        try {
-            DFAgentDescription template = new DFAgentDescription();
-            ServiceDescription sd = new ServiceDescription();
-            sd.setType("atm-service");
-            template.addServices(sd);
-
-            DFAgentDescription[] result = DFService.search(this, template);
-            for (DFAgentDescription dfd : result) {
-                atms.add(dfd.getName().getLocalName());
-            }
-        } catch (Exception e) {
-            e.printStackTrace();
+        for (DFAgentDescription dfd : directory.search("atm-service")) {
+            atms.add(dfd.getName().getLocalName());
         }
         return atms;
     }
@@ -205,29 +293,21 @@ public class UserAgent extends Agent {
     
  // În UserAgent.java
     public String fetchAdText(String atmName) {
-        // căutăm AID-ul ATM-ului
-        DFAgentDescription template = new DFAgentDescription();
-        ServiceDescription sd = new ServiceDescription();
-        sd.setType("atm-service");
-        template.addServices(sd);
-
-        try {
-            DFAgentDescription[] result = DFService.search(this, template);
-            for (DFAgentDescription dfd : result) {
-                if (dfd.getName().getLocalName().equals(atmName)) {
-                    ACLMessage msg = new ACLMessage(ACLMessage.REQUEST);
-                    msg.addReceiver(dfd.getName());
-                    msg.setContent("GET_AD");
-                    send(msg);
-
-                    ACLMessage reply = blockingReceive();
-                    if (reply != null) {
-                        return reply.getContent();
-                    }
+        // căutăm AID-ul ATM-ului în copia locală a DF-ului
+        for (DFAgentDescription dfd : directory.search("atm-service")) {
+            if (dfd.getName().getLocalName().equals(atmName)) {
+                ACLMessage msg = new ACLMessage(ACLMessage.REQUEST);
+                msg.addReceiver(dfd.getName());
+                msg.setConversationId(AD_CONVERSATION);
+                msg.setContent("GET_AD");
+                send(msg);
+
+                // doar răspunsul ATM-ului, nu și notificările DF-ului
+                ACLMessage reply = blockingReceive(MessageTemplate.MatchConversationId(AD_CONVERSATION), 5000);
+                if (reply != null) {
+                    return reply.getContent();
                 }
             }
-        } catch (Exception e) {
-            e.printStackTrace();
         }
 
         // fallback
@@ -2,16 +2,17 @@ package banking.gui;
 
 import javax.swing.*;
 import java.awt.*;
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
-import java.net.HttpURLConnection;
-import java.net.URL;
 
 import banking.agents.UserAgent;
+import banking.protocol.MessageTypes;
+import banking.protocol.Statement;
 import jade.lang.acl.ACLMessage;
 
 public class ATMUI implements UserGUI {
 
+    // câte tranzacții cere butonul Statement
+    private static final int STATEMENT_PAGE = 20;
+
     private JFrame frame;
     private JPanel root;
     private CardLayout cards;
@@ -19,6 +20,9 @@ public class ATMUI implements UserGUI {
     private JTextField userField, pinField, amountField;
     private JTextArea messages;
 
+    // token primit la AUTH_OK; tranzacțiile îl trimit în locul PIN-ului
+    private String sessionToken;
+
     private final String atmName;
     private final UserAgent agent;
 
@@ -66,69 +70,31 @@ public class ATMUI implements UserGUI {
 
     /* ===================== AD DIALOG ===================== */
 
+    // reclama vine de la ATM (servită din memorie), nu direct de la serviciul HTTP
     private void showAdAtStart() {
-        SwingUtilities.invokeLater(() -> {
-            String adText = fetchAdText();
-
-            JDialog dialog = new JDialog(frame, "Promoție ATM", true);
-            dialog.setLayout(new BorderLayout(10, 10));
+        agent.requestAd(atmName);
+    }
 
-            JTextArea adArea = new JTextArea(adText);
-            adArea.setEditable(false);
-            adArea.setLineWrap(true);
-            adArea.setWrapStyleWord(true);
-            adArea.setFont(new Font("SansSerif", Font.PLAIN, 14));
-            adArea.setBorder(BorderFactory.createEmptyBorder(10, 10, 10, 10));
+    private void showAd(String adText) {
+        JDialog dialog = new JDialog(frame, "Promoție ATM", true);
+        dialog.setLayout(new BorderLayout(10, 10));
 
-            JButton close = new JButton("Închide");
-            close.addActionListener(e -> dialog.dispose());
+        JTextArea adArea = new JTextArea(adText);
+        adArea.setEditable(false);
+        adArea.setLineWrap(true);
+        adArea.setWrapStyleWord(true);
+        adArea.setFont(new Font("SansSerif", Font.PLAIN, 14));
+        adArea.setBorder(BorderFactory.createEmptyBorder(10, 10, 10, 10));
 
-            dialog.add(new JScrollPane(adArea), BorderLayout.CENTER);
-            dialog.add(close, BorderLayout.SOUTH);
+        JButton close = new JButton("Închide");
+        close.addActionListener(e -> dialog.dispose());
 
-            dialog.setSize(420, 220);
-            dialog.setLocationRelativeTo(frame);
-            dialog.setVisible(true);
-        });
-    }
+        dialog.add(new JScrollPane(adArea), BorderLayout.CENTER);
+        dialog.add(close, BorderLayout.SOUTH);
 
-    private String fetchAdText() {
-        String fallback =
-                "💰 Promoție ATM!\n\n" +
-                "Fă cumpărături de minim 500 lei și poți câștiga o vacanță în Dubai!";
-
-        try {
-            URL url = new URL("http://localhost:8001/ad");
-            HttpURLConnection conn = (HttpURLConnection) url.openConnection();
-            conn.setRequestMethod("GET");
-            conn.setConnectTimeout(2000);
-            conn.setReadTimeout(3000);
-
-            if (conn.getResponseCode() != 200) return fallback;
-
-            BufferedReader in = new BufferedReader(
-                    new InputStreamReader(conn.getInputStream())
-            );
-
-            StringBuilder sb = new StringBuilder();
-            String line;
-            while ((line = in.readLine()) != null) sb.append(line);
-            in.close();
-
-            String json = sb.toString();
-            int start = json.indexOf("\"description\":\"");
-            if (start == -1) return fallback;
-            start += 15;
-            int end = json.indexOf("\"", start);
-            if (end == -1) return fallback;
-
-            return json.substring(start, end)
-                    .replace("\\n", "\n")
-                    .replace("\\\"", "\"");
-
-        } catch (Exception e) {
-            return fallback;
-        }
+        dialog.setSize(420, 220);
+        dialog.setLocationRelativeTo(frame);
+        dialog.setVisible(true);
     }
 
     /* ===================== PANELS ===================== */
@@ -159,15 +125,20 @@ public class ATMUI implements UserGUI {
 
         JButton deposit = primary("Deposit");
         JButton withdraw = primary("Withdraw");
+        JButton statement = secondary("Statement");
+        JButton balance = secondary("Balance");
         JButton logout = secondary("Logout");
 
         deposit.addActionListener(e -> send("DEPOSIT"));
         withdraw.addActionListener(e -> send("WITHDRAW"));
+        statement.addActionListener(e -> statement());
+        balance.addActionListener(e -> balance());
         logout.addActionListener(e -> logout());
 
         addRow(p, "Amount:", amountField, 0);
         addButtons(p, deposit, withdraw, 1);
-        addButtons(p, logout, null, 2);
+        addButtons(p, statement, balance, 2);
+        addButtons(p, logout, null, 3);
 
         return p;
     }
@@ -196,12 +167,28 @@ public class ATMUI implements UserGUI {
 
         agent.sendToATM(atmName,
                 type + ";" + userField.getText() + ";" +
-                        pinField.getText() + ";" + amt);
+                        credential() + ";" + amt);
 
         amountField.setText("");
     }
 
+    /** Ultimele tranzacții; banca trimite extrasul în mai multe mesaje. */
+    private void statement() {
+        agent.sendToATM(atmName,
+                MessageTypes.STATEMENT + ";" + userField.getText() + ";" + credential() + ";" + STATEMENT_PAGE);
+    }
+
+    /** Doar citește soldul; poate răspunde o replică a băncii. */
+    private void balance() {
+        agent.sendToATM(atmName, MessageTypes.BALANCE + ";" + userField.getText() + ";" + credential());
+    }
+
+    private String credential() {
+        return sessionToken != null ? MessageTypes.TOKEN_PREFIX + sessionToken : pinField.getText();
+    }
+
     private void logout() {
+        sessionToken = null;
         cards.show(root, "login");
         clearFields();
         info("Delogat cu succes");
@@ -220,10 +207,24 @@ public class ATMUI implements UserGUI {
     public void processBankResponse(ACLMessage msg) {
         SwingUtilities.invokeLater(() -> {
             String c = msg.getContent();
+            if (UserAgent.AD_CONVERSATION.equals(msg.getConversationId())) {
+                showAd(c);
+                return;
+            }
             info("ATM → " + c);
 
             if (c.startsWith("AUTH_OK")) {
+                String[] p = c.split(";");
+                sessionToken = p.length > 2 ? p[2] : null;
                 cards.show(root, "txn");
+            } else if (c.startsWith("AUTH_FAIL") && sessionToken != null) {
+                sessionToken = null;
+                cards.show(root, "login");
+                error("Sesiune expirată, autentificați-vă din nou");
+            } else if (c.startsWith(Statement.PART)) {
+                return; // extrasul a fost deja afișat mai sus
+            } else if (c.endsWith("_BUSY") || c.startsWith(MessageTypes.BUSY)) {
+                error("Banca este ocupată, reîncercați în câteva momente");
             } else if (c.contains(";")) {
                 success("Sold curent: " + c.split(";")[1]);
             }
@@ -3,6 +3,7 @@ package banking.gui;
 import javax.swing.*;
 import java.awt.*;
 import banking.agents.UserAgent;
+import banking.protocol.MessageTypes;
 import jade.lang.acl.ACLMessage;
 
 public class BankUI implements UserGUI {
@@ -14,6 +15,9 @@ public class BankUI implements UserGUI {
     private JTextField userField, pinField, amountField;
     private JTextArea messages; // JTextArea global pentru toate mesajele
 
+    // session token from AUTH_OK, sent instead of the PIN by transactions
+    private String sessionToken;
+
     private final UserAgent agent;
 
     public BankUI(UserAgent agent) {
@@ -84,15 +88,18 @@ public class BankUI implements UserGUI {
 
         JButton deposit = primary("Deposit");
         JButton withdraw = primary("Withdraw");
+        JButton balance = secondary("Balance");
         JButton logout = secondary("Logout");
 
         deposit.addActionListener(e -> send("DEPOSIT"));
         withdraw.addActionListener(e -> send("WITHDRAW"));
+        balance.addActionListener(e ->
+                agent.sendToBank(MessageTypes.BALANCE + ";" + userField.getText() + ";" + credential()));
         logout.addActionListener(e -> logout());
 
         addRow(p, "Amount:", amountField, 1);
         addButtons(p, deposit, withdraw, 2);
-        addButtons(p, logout, null, 3);
+        addButtons(p, balance, logout, 3);
 
         return p;
     }
@@ -130,11 +137,16 @@ public class BankUI implements UserGUI {
             error("Invalid amount");
             return;
         }
-        agent.sendToBank(type + ";" + userField.getText() + ";" + pinField.getText() + ";" + a);
+        agent.sendToBank(type + ";" + userField.getText() + ";" + credential() + ";" + a);
         amountField.setText("");
     }
 
+    private String credential() {
+        return sessionToken != null ? MessageTypes.TOKEN_PREFIX + sessionToken : pinField.getText();
+    }
+
     private void logout() {
+        sessionToken = null;
         cards.show(root, "login");
         clearFields();
         info("Logged out");
@@ -154,12 +166,21 @@ public class BankUI implements UserGUI {
             info("Bank: " + c);
 
             if (c.startsWith("AUTH_OK") || c.startsWith("ACCOUNT_CREATED")) {
+                String[] p = c.split(";");
+                sessionToken = p.length > 2 ? p[2] : null;
                 cards.show(root, "txn");
+            } else if (c.startsWith("AUTH_FAIL") && sessionToken != null) {
+                sessionToken = null;
+                cards.show(root, "login");
+                error("Session expired, please log in again");
+            } else if (c.startsWith(MessageTypes.BUSY)) {
+                error("The bank is busy, please try again in a moment");
+                return;
             }
 
             if (c.contains(";")) {
                 String[] p = c.split(";");
-                if (p.length == 2) {
+                if (p.length >= 2) {
                     success("Balance: " + p[1]);
                 }
             }
@@ -0,0 +1,114 @@
+package banking.metrics;
+
+import banking.util.LatencyHistogram;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+import javax.management.ObjectName;
+
+/**
+ * Counters, gauges and latency histograms of one agent. Safe to update from
+ * any thread; published as an MXBean and, through {@link MetricsReporter},
+ * to the metrics agent.
+ */
+public class AgentMetrics implements AgentMetricsMXBean {
+
+    private final String agent;
+    private final Map<String, AtomicLong> counters = new ConcurrentHashMap<>();
+    private final Map<String, LongSupplier> gauges = new ConcurrentHashMap<>();
+    private final Map<String, LatencyHistogram> latencies = new ConcurrentHashMap<>();
+    private ObjectName objectName;
+
+    public AgentMetrics(String agent) {
+        this.agent = agent;
+    }
+
+    /* ---------------- RECORDING ---------------- */
+
+    public void increment(String name) {
+        counters.computeIfAbsent(name, n -> new AtomicLong()).incrementAndGet();
+    }
+
+    public void gauge(String name, LongSupplier value) {
+        gauges.put(name, value);
+    }
+
+    public void recordNanos(String name, long nanos) {
+        LatencyHistogram h = latencies.computeIfAbsent(name, n -> new LatencyHistogram());
+        synchronized (h) {
+            h.recordNanos(nanos);
+        }
+    }
+
+    /* ---------------- JMX ---------------- */
+
+    public void register() {
+        try {
+            objectName = new ObjectName("banking:type=AgentMetrics,name=" + ObjectName.quote(agent));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+        } catch (Exception e) {
+            System.out.println("Metrics: cannot register MBean for " + agent + ": " + e.getMessage());
+            objectName = null;
+        }
+    }
+
+    public void unregister() {
+        if (objectName == null) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+        } catch (Exception e) {
+            // already gone
+        }
+    }
+
+    @Override
+    public Map<String, Long> getCounters() {
+        Map<String, Long> out = new TreeMap<>();
+        counters.forEach((name, value) -> out.put(name, value.get()));
+        return out;
+    }
+
+    @Override
+    public Map<String, Long> getGauges() {
+        Map<String, Long> out = new TreeMap<>();
+        gauges.forEach((name, value) -> out.put(name, value.getAsLong()));
+        return out;
+    }
+
+    @Override
+    public Map<String, LatencySummary> getLatencies() {
+        Map<String, LatencySummary> out = new TreeMap<>();
+        latencies.forEach((name, h) -> {
+            synchronized (h) {
+                out.put(name, new LatencySummary(h.count(), h.percentile(50), h.percentile(99),
+                        h.percentile(99.9), h.max()));
+            }
+        });
+        return out;
+    }
+
+    @Override
+    public void reset() {
+        counters.values().forEach(c -> c.set(0));
+        latencies.values().forEach(h -> {
+            synchronized (h) {
+                h.reset();
+            }
+        });
+    }
+
+    /** One "kind.name=value" line per metric, the format sent to the metrics agent. */
+    public String snapshot() {
+        StringBuilder sb = new StringBuilder();
+        getCounters().forEach((name, value) -> sb.append("counter.").append(name).append('=').append(value).append('\n'));
+        getGauges().forEach((name, value) -> sb.append("gauge.").append(name).append('=').append(value).append('\n'));
+        getLatencies().forEach((name, value) -> sb.append("latency.").append(name).append('=').append(value).append('\n'));
+        return sb.toString();
+    }
+}
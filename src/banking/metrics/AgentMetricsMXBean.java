@@ -0,0 +1,15 @@
+package banking.metrics;
+
+import java.util.Map;
+
+/** JMX view of one agent's metrics, under {@code banking:type=AgentMetrics,name=<agent>}. */
+public interface AgentMetricsMXBean {
+
+    Map<String, Long> getCounters();
+
+    Map<String, Long> getGauges();
+
+    Map<String, LatencySummary> getLatencies();
+
+    void reset();
+}
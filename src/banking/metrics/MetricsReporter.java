@@ -0,0 +1,63 @@
+package banking.metrics;
+
+import jade.core.AID;
+import jade.core.Agent;
+import jade.core.behaviours.TickerBehaviour;
+import jade.domain.DFService;
+import jade.domain.FIPAAgentManagement.*;
+import jade.lang.acl.ACLMessage;
+
+import banking.util.ServiceDirectory;
+
+/**
+ * Periodically sends the agent's metrics snapshot to the metrics agent,
+ * looked up in the DF until one is found. Nothing is sent while there is none.
+ */
+public class MetricsReporter extends TickerBehaviour {
+
+    public static final String SERVICE_TYPE = "metrics-service";
+    public static final String CONVERSATION = "metrics";
+
+    private final AgentMetrics metrics;
+    private final ServiceDirectory directory;
+    private AID collector;
+
+    public MetricsReporter(Agent agent, AgentMetrics metrics) {
+        this(agent, metrics, null);
+    }
+
+    /** Looks the collector up in the agent's directory instead of searching the DF. */
+    public MetricsReporter(Agent agent, AgentMetrics metrics, ServiceDirectory directory) {
+        super(agent, Long.getLong("metrics.publishMs", 5000));
+        this.metrics = metrics;
+        this.directory = directory;
+    }
+
+    @Override
+    protected void onTick() {
+        if (collector == null && (collector = findCollector()) == null) {
+            return;
+        }
+        ACLMessage msg = new ACLMessage(ACLMessage.INFORM);
+        msg.addReceiver(collector);
+        msg.setConversationId(CONVERSATION);
+        msg.setContent(metrics.snapshot());
+        myAgent.send(msg);
+    }
+
+    private AID findCollector() {
+        if (directory != null) {
+            return directory.find(SERVICE_TYPE);
+        }
+        DFAgentDescription template = new DFAgentDescription();
+        ServiceDescription sd = new ServiceDescription();
+        sd.setType(SERVICE_TYPE);
+        template.addServices(sd);
+        try {
+            DFAgentDescription[] result = DFService.search(myAgent, template);
+            return result.length > 0 ? result[0].getName() : null;
+        } catch (Exception e) {
+            return null;
+        }
+    }
+}
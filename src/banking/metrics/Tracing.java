@@ -0,0 +1,174 @@
+package banking.metrics;
+
+import jade.lang.acl.ACLMessage;
+
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * End-to-end request tracing through ACL user-defined parameters.
+ *
+ * The client starts a trace when it sends a request ({@link #start}); every
+ * hop copies the trace onto the messages it sends for that request
+ * ({@link #propagate}) and records timed spans ({@link #span}). Each message
+ * also carries the time it was sent, so the receiver can record the time a
+ * message spent in transit and in its queue. Spans are appended to
+ * {@code trace.file} by a background thread as tab-separated lines
+ * {@code traceId agent span startMicros durationMicros}; grepping a trace id
+ * gives the request hop by hop. Times are wall-clock microseconds, comparable
+ * across agents of the same JVM.
+ *
+ * With {@code trace.enabled=false} (the default) nothing is stamped or written.
+ */
+public final class Tracing {
+
+    public static final String TRACE_ID = "X-Trace-Id";
+    /** When the client sent the first message of the trace. */
+    public static final String STARTED_AT = "X-Trace-Start";
+    /** When this message was sent. */
+    public static final String SENT_AT = "X-Trace-Sent";
+
+    private static final boolean ENABLED = Boolean.getBoolean("trace.enabled");
+    private static final double SAMPLE_RATE =
+            Double.parseDouble(System.getProperty("trace.sampleRate", "1"));
+    private static final String FILE = System.getProperty("trace.file", "spans.log");
+    private static final int QUEUE_SIZE = 65536;
+
+    private static final long EPOCH_OFFSET_MICROS =
+            System.currentTimeMillis() * 1000 - System.nanoTime() / 1000;
+
+    private static final BlockingQueue<String> spans = new ArrayBlockingQueue<>(QUEUE_SIZE);
+    private static final AtomicLong dropped = new AtomicLong();
+    private static Thread writer;
+
+    private Tracing() {
+    }
+
+    public static boolean enabled() {
+        return ENABLED;
+    }
+
+    public static long nowMicros() {
+        return micros(System.nanoTime());
+    }
+
+    /** Converts a {@link System#nanoTime()} reading to wall-clock microseconds. */
+    public static long micros(long nanoTime) {
+        return EPOCH_OFFSET_MICROS + nanoTime / 1000;
+    }
+
+    /* ---------------- PROPAGATION ---------------- */
+
+    /** Starts a trace on a client request. @return the trace id, or null if not traced */
+    public static String start(ACLMessage msg) {
+        if (!ENABLED || (SAMPLE_RATE < 1 && ThreadLocalRandom.current().nextDouble() >= SAMPLE_RATE)) {
+            return null;
+        }
+        String id = Long.toHexString(ThreadLocalRandom.current().nextLong() | Long.MIN_VALUE);
+        long now = nowMicros();
+        msg.addUserDefinedParameter(TRACE_ID, id);
+        msg.addUserDefinedParameter(STARTED_AT, Long.toString(now));
+        msg.addUserDefinedParameter(SENT_AT, Long.toString(now));
+        return id;
+    }
+
+    /** Copies the trace of {@code from}, if any, onto {@code to} and stamps its send time. */
+    public static void propagate(ACLMessage from, ACLMessage to) {
+        String id = id(from);
+        if (id == null) {
+            return;
+        }
+        to.addUserDefinedParameter(TRACE_ID, id);
+        to.addUserDefinedParameter(STARTED_AT, from.getUserDefinedParameter(STARTED_AT));
+        to.addUserDefinedParameter(SENT_AT, Long.toString(nowMicros()));
+    }
+
+    /** @return the trace id of the message, or null if it is not traced */
+    public static String id(ACLMessage msg) {
+        return ENABLED ? msg.getUserDefinedParameter(TRACE_ID) : null;
+    }
+
+    public static long sentAt(ACLMessage msg) {
+        return timestamp(msg, SENT_AT);
+    }
+
+    public static long startedAt(ACLMessage msg) {
+        return timestamp(msg, STARTED_AT);
+    }
+
+    private static long timestamp(ACLMessage msg, String param) {
+        String value = msg.getUserDefinedParameter(param);
+        try {
+            return value != null ? Long.parseLong(value) : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /* ---------------- SPANS ---------------- */
+
+    /** Records a span of the trace; no-op for an untraced request or a missing start time. */
+    public static void span(String traceId, String agent, String name, long startMicros, long endMicros) {
+        if (traceId == null || startMicros < 0) {
+            return;
+        }
+        ensureWriter();
+        String line = traceId + '\t' + agent + '\t' + name + '\t' + startMicros + '\t'
+                + Math.max(0, endMicros - startMicros);
+        if (!spans.offer(line)) {
+            dropped.incrementAndGet(); // the writer fell behind; tracing must not slow requests down
+        }
+    }
+
+    /** Records the time a message spent between its sender and the moment it was taken from the queue. */
+    public static void inbound(ACLMessage msg, String agent, String name, long receivedMicros) {
+        String id = id(msg);
+        if (id != null) {
+            span(id, agent, name, sentAt(msg), receivedMicros);
+        }
+    }
+
+    private static synchronized void ensureWriter() {
+        if (writer != null) {
+            return;
+        }
+        writer = new Thread(Tracing::writeLoop, "trace-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    private static void writeLoop() {
+        List<String> batch = new ArrayList<>();
+        try (BufferedWriter out = new BufferedWriter(new FileWriter(FILE, true))) {
+            while (true) {
+                String first = spans.poll(1, TimeUnit.SECONDS);
+                if (first != null) {
+                    batch.add(first);
+                    spans.drainTo(batch);
+                    for (String line : batch) {
+                        out.write(line);
+                        out.newLine();
+                    }
+                    batch.clear();
+                }
+                long lost = dropped.getAndSet(0);
+                if (lost > 0) {
+                    System.out.println("Tracing: dropped " + lost + " spans");
+                }
+                out.flush();
+            }
+        } catch (IOException e) {
+            System.out.println("Tracing: cannot write " + FILE + ": " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -1,5 +1,9 @@
 package banking.model;
 
+import banking.util.SecurityUtil;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
 
 public class Account implements Serializable {
@@ -7,32 +11,47 @@ public class Account implements Serializable {
     private static final long serialVersionUID = 1L;
 
     private String username;
+    /** Hex hash written by older versions; converted to {@link #pinDigest} on read. */
     private String pinHash;
+    private byte[] pinDigest;
     private int balance;
 
-    public Account(String username, String pinHash, int balance) {
+    public Account(String username, byte[] pinDigest, int balance) {
         this.username = username;
-        this.pinHash = pinHash;
+        this.pinDigest = pinDigest;
         this.balance = balance;
     }
 
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        if (pinDigest == null && pinHash != null) {
+            pinDigest = SecurityUtil.fromHex(pinHash);
+        }
+        pinHash = null;
+    }
+
     public String getUsername() {
         return username;
     }
 
-    public String getPinHash() {
-        return pinHash;
+    /** Raw SHA-256 digest of the PIN; callers must not modify it. */
+    public byte[] getPinDigest() {
+        return pinDigest;
     }
 
-    public int getBalance() {
+    public synchronized int getBalance() {
         return balance;
     }
 
-    public void deposit(int amount) {
+    public synchronized void setBalance(int balance) {
+        this.balance = balance;
+    }
+
+    public synchronized void deposit(int amount) {
         balance += amount;
     }
 
-    public boolean withdraw(int amount) {
+    public synchronized boolean withdraw(int amount) {
         if (amount > balance) {
             return false;
         }
@@ -0,0 +1,118 @@
+package banking.persistence;
+
+import banking.model.Account;
+import banking.util.SecurityUtil;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Predicate;
+import java.util.stream.IntStream;
+
+/**
+ * Reads the accounts of a bulk import from a text file with one
+ * {@code user;pin;balance} line per account; empty lines and lines starting
+ * with {@code #} are ignored. A username longer than any store can hold
+ * ({@link MappedAccountStore#MAX_NAME_BYTES} bytes of UTF-8) makes the line
+ * malformed, so the store never rejects an account halfway through an import.
+ *
+ * The file is read in chunks and the lines of a chunk are parsed and their
+ * PINs hashed in parallel on the common fork-join pool, so the import runs on
+ * every core instead of paying one hash per CREATE message. Only the PINs of
+ * the accounts the {@code owns} filter accepts are hashed: with N shards each
+ * hashes its own part of the file.
+ */
+public class AccountImport {
+
+    private static final int CHUNK = 65536;
+    private static final Account BLANK = new Account("", null, 0);
+    private static final Account OTHER = new Account("", null, 0);
+
+    private int malformed;
+    private int skipped;
+
+    /**
+     * @param owns accepts the usernames to import, the others are skipped; called from several threads
+     * @return the accounts, in file order
+     */
+    public List<Account> read(File file, Predicate<String> owns) throws IOException {
+        List<Account> accounts = new ArrayList<>();
+        List<String> chunk = new ArrayList<>(CHUNK);
+        try (BufferedReader in = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                chunk.add(line);
+                if (chunk.size() == CHUNK) {
+                    parse(chunk, owns, accounts);
+                    chunk.clear();
+                }
+            }
+        }
+        parse(chunk, owns, accounts);
+        return accounts;
+    }
+
+    /** Lines that could not be parsed. */
+    public int malformed() {
+        return malformed;
+    }
+
+    /** Accounts rejected by the {@code owns} filter. */
+    public int skipped() {
+        return skipped;
+    }
+
+    private void parse(List<String> lines, Predicate<String> owns, List<Account> into) {
+        Account[] parsed = new Account[lines.size()];
+        IntStream.range(0, parsed.length).parallel().forEach(i -> parsed[i] = parseLine(lines.get(i), owns));
+
+        for (int i = 0; i < parsed.length; i++) {
+            Account acc = parsed[i];
+            if (acc == BLANK) {
+                continue;
+            }
+            if (acc == null) {
+                if (malformed++ < 10) {
+                    System.out.println("AccountImport: skipping bad line: " + lines.get(i));
+                }
+            } else if (acc == OTHER) {
+                skipped++;
+            } else {
+                into.add(acc);
+            }
+        }
+    }
+
+    /**
+     * @return the account, {@link #BLANK} for a line to ignore, {@link #OTHER}
+     *         for an account {@code owns} rejects, or null if the line is malformed
+     */
+    private static Account parseLine(String line, Predicate<String> owns) {
+        if (line.isEmpty() || line.startsWith("#")) {
+            return BLANK;
+        }
+        int p0 = line.indexOf(';');
+        int p1 = p0 < 0 ? -1 : line.indexOf(';', p0 + 1);
+        if (p0 <= 0 || p1 <= p0 + 1 || line.indexOf(';', p1 + 1) >= 0) {
+            return null;
+        }
+        int balance;
+        try {
+            balance = Integer.parseInt(line.substring(p1 + 1).trim());
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        String user = line.substring(0, p0);
+        if (balance < 0 || user.getBytes(StandardCharsets.UTF_8).length > MappedAccountStore.MAX_NAME_BYTES) {
+            return null;
+        }
+        if (!owns.test(user)) {
+            return OTHER;
+        }
+        return new Account(user, SecurityUtil.hashPIN(line.substring(p0 + 1, p1)), balance);
+    }
+}
@@ -0,0 +1,47 @@
+package banking.persistence;
+
+import banking.model.Account;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.function.Consumer;
+
+/**
+ * Storage engine behind BankAgent. Durability of individual operations comes
+ * from the {@link TransactionJournal}; a store only has to reach a consistent
+ * on-disk image when a checkpoint is written.
+ */
+public interface AccountStore extends Closeable {
+
+    /** Opens the store and loads or maps its on-disk image. */
+    void load() throws IOException;
+
+    /** @return the account, or null if it does not exist */
+    Account get(String user);
+
+    /** @return false if an account with this username already exists */
+    boolean create(Account acc);
+
+    /** Persists a balance change made on an account returned by {@link #get}. */
+    void update(Account acc);
+
+    int size();
+
+    void forEach(Consumer<Account> action);
+
+    /** First journal segment not covered by the on-disk image; replay starts here. */
+    long checkpointSegment();
+
+    /**
+     * Captures the accounts changed since the previous checkpoint. Must run
+     * while no operation is modifying the store; the returned checkpoint can
+     * then be written on another thread while operations continue.
+     *
+     * @param segment first journal segment the checkpoint does not cover
+     */
+    Checkpoint capture(long segment);
+
+    interface Checkpoint {
+        void write() throws IOException;
+    }
+}
@@ -0,0 +1,233 @@
+package banking.persistence;
+
+import banking.model.Account;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+/**
+ * Keeps every account in a ConcurrentHashMap.
+ *
+ * The on-disk image is a full snapshot (the original accounts.dat format,
+ * followed by the journal segment it covers) plus incremental checkpoint
+ * files {@code <snapshot>.<segment>} that hold only the accounts changed
+ * since the previous checkpoint. Once {@code maxDeltas} of them accumulate
+ * they are merged into a new snapshot from disk, without touching the live map.
+ */
+public class HeapAccountStore implements AccountStore {
+
+    private final File file;
+    private final int maxDeltas;
+    private Map<String, Account> accounts = new ConcurrentHashMap<>();
+    private Set<String> dirty = ConcurrentHashMap.newKeySet();
+    private volatile long checkpointSegment;
+
+    public HeapAccountStore(File file) {
+        this(file, 8);
+    }
+
+    public HeapAccountStore(File file, int maxDeltas) {
+        this.file = file;
+        this.maxDeltas = Math.max(1, maxDeltas);
+    }
+
+    /* ---------------- LOAD ---------------- */
+
+    @Override
+    public void load() {
+        try {
+            checkpointSegment = readSnapshot(file, accounts);
+        } catch (Exception e) {
+            accounts = new ConcurrentHashMap<>();
+        }
+
+        try {
+            for (long segment : listDeltas()) {
+                if (segment > checkpointSegment) {
+                    readDelta(segment, accounts);
+                    checkpointSegment = segment;
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Bank: cannot read checkpoint", e);
+        }
+
+        if (accounts.isEmpty()) {
+            System.out.println("Bank: no existing data, starting fresh");
+        } else {
+            System.out.println("Bank: loaded " + accounts.size() + " accounts");
+        }
+    }
+
+    /** @return the journal segment covered by the snapshot (0 for old snapshots) */
+    @SuppressWarnings("unchecked")
+    private static long readSnapshot(File source, Map<String, Account> into)
+            throws IOException, ClassNotFoundException {
+        try (ObjectInputStream ois =
+                     new ObjectInputStream(new BufferedInputStream(new FileInputStream(source)))) {
+            into.putAll((Map<String, Account>) ois.readObject());
+            try {
+                return ois.readLong();
+            } catch (EOFException e) {
+                return 0;
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void readDelta(long segment, Map<String, Account> into) throws IOException {
+        try (ObjectInputStream ois = new ObjectInputStream(
+                new BufferedInputStream(new FileInputStream(deltaFile(segment))))) {
+            for (Account acc : (List<Account>) ois.readObject()) {
+                into.put(acc.getUsername(), acc);
+            }
+        } catch (ClassNotFoundException e) {
+            throw new IOException(e);
+        }
+    }
+
+    private File deltaFile(long segment) {
+        return new File(file.getPath() + "." + segment);
+    }
+
+    private List<Long> listDeltas() {
+        List<Long> deltas = new ArrayList<>();
+        File dir = file.getAbsoluteFile().getParentFile();
+        String prefix = file.getName() + ".";
+        String[] names = dir.list();
+        if (names != null) {
+            for (String name : names) {
+                if (name.startsWith(prefix)) {
+                    try {
+                        deltas.add(Long.parseLong(name.substring(prefix.length())));
+                    } catch (NumberFormatException ignored) {
+                        // e.g. the .tmp file
+                    }
+                }
+            }
+        }
+        Collections.sort(deltas);
+        return deltas;
+    }
+
+    /* ---------------- ACCOUNTS ---------------- */
+
+    @Override
+    public Account get(String user) {
+        return accounts.get(user);
+    }
+
+    @Override
+    public boolean create(Account acc) {
+        if (accounts.putIfAbsent(acc.getUsername(), acc) != null) {
+            return false;
+        }
+        dirty.add(acc.getUsername());
+        return true;
+    }
+
+    @Override
+    public void update(Account acc) {
+        // accounts are live objects, only remember that this one changed
+        dirty.add(acc.getUsername());
+    }
+
+    @Override
+    public int size() {
+        return accounts.size();
+    }
+
+    @Override
+    public void forEach(Consumer<Account> action) {
+        accounts.values().forEach(action);
+    }
+
+    /* ---------------- CHECKPOINT ---------------- */
+
+    @Override
+    public long checkpointSegment() {
+        return checkpointSegment;
+    }
+
+    @Override
+    public Checkpoint capture(long segment) {
+        if (dirty.isEmpty()) {
+            // nothing changed, so the segments being retired are empty
+            return () -> { };
+        }
+
+        List<Account> changed = new ArrayList<>(dirty.size());
+        for (String user : dirty) {
+            Account acc = accounts.get(user);
+            changed.add(new Account(acc.getUsername(), acc.getPinDigest(), acc.getBalance()));
+        }
+        dirty = ConcurrentHashMap.newKeySet();
+
+        return () -> {
+            writeAtomically(deltaFile(segment), changed);
+            checkpointSegment = segment;
+
+            List<Long> deltas = listDeltas();
+            if (deltas.size() >= maxDeltas) {
+                merge(segment);
+            }
+        };
+    }
+
+    /** Folds the snapshot and every delta up to {@code segment} into a new snapshot. */
+    private void merge(long segment) throws IOException {
+        Map<String, Account> merged = new HashMap<>();
+        try {
+            if (file.exists()) {
+                readSnapshot(file, merged);
+            }
+        } catch (ClassNotFoundException e) {
+            throw new IOException(e);
+        }
+
+        List<Long> deltas = listDeltas();
+        for (long n : deltas) {
+            if (n <= segment) {
+                readDelta(n, merged);
+            }
+        }
+
+        File tmp = new File(file.getPath() + ".tmp");
+        try (FileOutputStream fos = new FileOutputStream(tmp);
+             ObjectOutputStream oos = new ObjectOutputStream(new BufferedOutputStream(fos))) {
+            oos.writeObject(merged);
+            oos.writeLong(segment);
+            oos.flush();
+            fos.getFD().sync();
+        }
+        Files.move(tmp.toPath(), file.toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        for (long n : deltas) {
+            if (n <= segment) {
+                deltaFile(n).delete();
+            }
+        }
+        System.out.println("Bank: merged " + deltas.size() + " checkpoints into " + file);
+    }
+
+    private void writeAtomically(File target, Object content) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        try (FileOutputStream fos = new FileOutputStream(tmp);
+             ObjectOutputStream oos = new ObjectOutputStream(new BufferedOutputStream(fos))) {
+            oos.writeObject(content);
+            oos.flush();
+            fos.getFD().sync();
+        }
+        Files.move(tmp.toPath(), target.toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    @Override
+    public void close() {
+    }
+}
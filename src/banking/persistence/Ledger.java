@@ -0,0 +1,454 @@
+package banking.persistence;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only history of the operations on every account, for statements.
+ *
+ * Record: [int length][long previous][long seq][long timeMillis][UTF user]
+ * [UTF op][int amount][int balance][UTF counterparty]. {@code previous} is
+ * the offset of the account's previous record (-1 for its first), so the
+ * records of one account form a list from the newest back to the oldest, in
+ * time order. Only the offset of every account's newest record is kept in
+ * memory; a statement follows the list on disk and never loads a whole history.
+ *
+ * Entries are numbered ({@code seq}) in journal order and are written into
+ * the journal record of their balance change (see {@link TransactionJournal}),
+ * so an entry is durable when its operation is; the journal appends it here
+ * once the record is. {@link #append} only queues the entry: a background
+ * thread writes the queue, in seq order, so operations do not wait for the
+ * ledger. After a crash the journal replay appends again the entries past
+ * {@link #lastSeq()}, and a checkpoint deletes journal segments only once
+ * {@link #sync} has their entries on disk.
+ *
+ * The offsets of the newest records are saved in {@code <file>.heads} on
+ * close and, once the records written since would take as long to scan as
+ * the heads to read, on sync; opening reads them and scans only the records
+ * written after.
+ */
+public class Ledger implements Closeable {
+
+    private static final int QUEUE_SIZE = 65536;
+    private static final int MAX_RECORD = 64 * 1024;
+    private static final long FORCE_INTERVAL_MS = 1000;
+    private static final long SYNC_TIMEOUT_MS = 30000;
+    private static final long MIN_HEADS_INTERVAL = 1 << 20;
+
+    private final File file;
+    private final File headsFile;
+    private final FileChannel channel;
+    /** Offset of the newest written record of each account. */
+    private final Map<String, Long> heads = new ConcurrentHashMap<>();
+    private final BlockingQueue<Entry> queue = new ArrayBlockingQueue<>(QUEUE_SIZE);
+    private final Thread writer;
+    /** Length of the written records; readers only follow offsets below it. */
+    private volatile long size;
+    private volatile boolean closed;
+
+    /** Seq of the newest entry queued or written. */
+    private volatile long lastSeq;
+    /* Written by the writer thread; forcedSeq under the monitor. */
+    private long writtenSeq;
+    private long forcedSeq;
+    private volatile long syncRequested;
+    private volatile boolean failed;
+    /** The length of the records the heads file covers, and its own size. */
+    private long headsCover;
+    private long headsSize;
+
+    public Ledger(File file) throws IOException {
+        this.file = file;
+        this.headsFile = new File(file.getPath() + ".heads");
+        long valid = scan(loadHeads());
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        if (channel.size() > valid) {
+            System.out.println("Ledger: truncating torn tail at " + valid);
+            channel.truncate(valid);
+        }
+        size = valid;
+        writtenSeq = lastSeq;
+        forcedSeq = lastSeq;
+
+        writer = new Thread(this::writeLoop, "ledger-writer-" + file.getName());
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Reads the heads file into {@link #heads} and {@link #lastSeq}.
+     *
+     * @return the length of the records it covers, or 0 if there is no valid one
+     */
+    private long loadHeads() throws IOException {
+        if (!headsFile.exists() || !file.exists()) {
+            return 0;
+        }
+        byte[] bytes = Files.readAllBytes(headsFile.toPath());
+        if (bytes.length < 4) {
+            return 0;
+        }
+        CRC32 crc = new CRC32();
+        crc.update(bytes, 0, bytes.length - 4);
+        if ((int) crc.getValue() != ByteBuffer.wrap(bytes, bytes.length - 4, 4).getInt()) {
+            System.out.println("Ledger: ignoring damaged " + headsFile);
+            return 0;
+        }
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes, 0, bytes.length - 4));
+        long cover = in.readLong();
+        long seq = in.readLong();
+        if (cover > file.length()) {
+            return 0; // the file was replaced or cut short
+        }
+        for (int n = in.readInt(); n > 0; n--) {
+            heads.put(in.readUTF(), in.readLong());
+        }
+        lastSeq = seq;
+        headsCover = cover;
+        headsSize = bytes.length;
+        return cover;
+    }
+
+    /** Adds the records from {@code offset} on to {@link #heads}. @return the length of the complete records */
+    private long scan(long offset) throws IOException {
+        if (!file.exists()) {
+            return 0;
+        }
+        try (FileInputStream fin = new FileInputStream(file)) {
+            fin.getChannel().position(offset);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(fin));
+            while (true) {
+                int length;
+                try {
+                    length = in.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+                if (length <= 0 || length > MAX_RECORD) {
+                    break;
+                }
+                byte[] record = new byte[length];
+                try {
+                    in.readFully(record);
+                } catch (EOFException e) {
+                    break;
+                }
+                Entry e = decode(record);
+                heads.put(e.user, offset);
+                lastSeq = Math.max(lastSeq, e.seq);
+                offset += 4 + length;
+            }
+        }
+        return offset;
+    }
+
+    /* ---------------- APPEND ---------------- */
+
+    /**
+     * Queues a numbered entry, see {@link TransactionJournal}; waits only if
+     * the writer is a full queue behind. Entries must be appended in seq order.
+     * Once the writer has failed they are dropped: the journal keeps them.
+     */
+    public void append(Entry e) {
+        try {
+            while (!queue.offer(e, 100, TimeUnit.MILLISECONDS)) {
+                if (failed) {
+                    return;
+                }
+            }
+            lastSeq = e.seq;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /** Seq of the newest entry appended, or on disk when the ledger was opened. */
+    public long lastSeq() {
+        return lastSeq;
+    }
+
+    /** @return true if the account has a record on disk */
+    public boolean hasHistory(String user) {
+        return heads.containsKey(user);
+    }
+
+    /**
+     * Waits until every entry up to {@code seq} is written and forced to disk.
+     *
+     * @throws IOException if the writer has stopped or does not get there in time
+     */
+    public void sync(long seq) throws IOException {
+        long deadline = System.currentTimeMillis() + SYNC_TIMEOUT_MS;
+        synchronized (this) {
+            syncRequested = Math.max(syncRequested, seq);
+            while (forcedSeq < seq) {
+                long now = System.currentTimeMillis();
+                if (failed || !writer.isAlive()) {
+                    throw new IOException("ledger writer stopped");
+                }
+                if (now >= deadline) {
+                    throw new IOException("ledger sync timed out at " + forcedSeq + " of " + seq);
+                }
+                try {
+                    wait(Math.min(deadline - now, FORCE_INTERVAL_MS));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("ledger sync interrupted");
+                }
+            }
+        }
+    }
+
+    private void writeLoop() {
+        List<Entry> batch = new ArrayList<>();
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(4096);
+        ByteArrayOutputStream body = new ByteArrayOutputStream(128);
+        DataOutputStream out = new DataOutputStream(body);
+        DataOutputStream framed = new DataOutputStream(buffer);
+        long lastForce = System.currentTimeMillis();
+        try {
+            while (!closed || !queue.isEmpty()) {
+                Entry first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first != null) {
+                    batch.add(first);
+                    queue.drainTo(batch);
+
+                    // heads change only after the records are in the file, so readers never see a missing record
+                    Map<String, Long> written = new HashMap<>();
+                    buffer.reset();
+                    for (Entry e : batch) {
+                        Long previous = written.get(e.user);
+                        if (previous == null) {
+                            previous = heads.getOrDefault(e.user, -1L);
+                        }
+                        written.put(e.user, size + buffer.size());
+                        body.reset();
+                        out.writeLong(previous);
+                        writeEntry(out, e);
+                        framed.writeInt(body.size());
+                        body.writeTo(buffer);
+                    }
+                    byte[] bytes = buffer.toByteArray();
+                    ByteBuffer bb = ByteBuffer.wrap(bytes);
+                    while (bb.hasRemaining()) {
+                        channel.write(bb, size + bb.position());
+                    }
+                    size += bytes.length;
+                    heads.putAll(written);
+                    writtenSeq = batch.get(batch.size() - 1).seq;
+                    batch.clear();
+                }
+                long now = System.currentTimeMillis();
+                boolean syncing = syncRequested > forcedSeq() && syncRequested <= writtenSeq;
+                if (syncing || (writtenSeq > forcedSeq() && now - lastForce >= FORCE_INTERVAL_MS)) {
+                    channel.force(false);
+                    lastForce = now;
+                    if (syncing && size - headsCover >= Math.max(headsSize, MIN_HEADS_INTERVAL)) {
+                        saveHeads();
+                    }
+                    forced(writtenSeq);
+                }
+            }
+            channel.force(false);
+            saveHeads();
+            forced(writtenSeq);
+        } catch (IOException e) {
+            // the entries stay in the journal, which keeps them until a later start has written them
+            System.out.println("Ledger: cannot write " + file + ": " + e.getMessage());
+            failed = true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this) {
+            notifyAll();
+        }
+    }
+
+    private synchronized long forcedSeq() {
+        return forcedSeq;
+    }
+
+    private synchronized void forced(long seq) {
+        forcedSeq = seq;
+        notifyAll();
+    }
+
+    /** Called by the writer after a force: {@link #heads} matches the records on disk. */
+    private void saveHeads() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + heads.size() * 24);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeLong(size);
+        out.writeLong(writtenSeq);
+        out.writeInt(heads.size());
+        for (Map.Entry<String, Long> head : heads.entrySet()) {
+            out.writeUTF(head.getKey());
+            out.writeLong(head.getValue());
+        }
+        CRC32 crc = new CRC32();
+        crc.update(bytes.toByteArray(), 0, bytes.size());
+        out.writeInt((int) crc.getValue());
+
+        File tmp = new File(headsFile.getPath() + ".tmp");
+        try (FileOutputStream fout = new FileOutputStream(tmp)) {
+            bytes.writeTo(fout);
+            fout.getFD().sync();
+        }
+        Files.move(tmp.toPath(), headsFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        headsCover = size;
+        headsSize = bytes.size();
+    }
+
+    /* ---------------- READ ---------------- */
+
+    /**
+     * Reads one page of an account's history, newest first.
+     *
+     * @param cursor {@link Page#next} of the previous page, or -1 for the newest records
+     * @throws IllegalArgumentException if the cursor is not a record of this account
+     */
+    public Page read(String user, long cursor, int limit) throws IOException {
+        long offset = cursor >= 0 ? cursor : heads.getOrDefault(user, -1L);
+        List<Entry> entries = new ArrayList<>(Math.min(limit, 256));
+        ByteBuffer header = ByteBuffer.allocate(4);
+        while (offset >= 0 && entries.size() < limit) {
+            if (offset >= size) {
+                throw new IllegalArgumentException("bad statement cursor " + cursor);
+            }
+            header.clear();
+            readFully(header, offset);
+            int length = header.getInt(0);
+            if (length <= 0 || length > MAX_RECORD) {
+                throw new IllegalArgumentException("bad statement cursor " + cursor);
+            }
+            ByteBuffer record = ByteBuffer.allocate(length);
+            readFully(record, offset + 4);
+            Entry e = decode(record.array());
+            if (!e.user.equals(user)) {
+                // a cursor must not read another account's history
+                throw new IllegalArgumentException("bad statement cursor " + cursor);
+            }
+            entries.add(e);
+            offset = e.previous;
+        }
+        return new Page(entries, offset);
+    }
+
+    private void readFully(ByteBuffer bb, long position) throws IOException {
+        while (bb.hasRemaining()) {
+            if (channel.read(bb, position + bb.position()) < 0) {
+                throw new EOFException("ledger record past the end of " + file);
+            }
+        }
+    }
+
+    private static Entry decode(byte[] record) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+        return readEntry(in, in.readLong());
+    }
+
+    /* ---------------- ENTRIES ---------------- */
+
+    /**
+     * An entry for the ledger, numbered when it is journaled.
+     *
+     * @param amount the change to the balance, negative when money left the account
+     * @param counterparty the other account of a transfer, or null
+     */
+    public static Entry entry(String user, String op, int amount, int balance, String counterparty) {
+        return new Entry(-1, 0, System.currentTimeMillis(), user, op, amount, balance,
+                counterparty != null ? counterparty : "");
+    }
+
+    /** [long seq][long timeMillis][UTF user][UTF op][int amount][int balance][UTF counterparty] */
+    static void writeEntry(DataOutputStream out, Entry e) throws IOException {
+        out.writeLong(e.seq);
+        out.writeLong(e.time);
+        out.writeUTF(e.user);
+        out.writeUTF(e.op);
+        out.writeInt(e.amount);
+        out.writeInt(e.balance);
+        out.writeUTF(e.counterparty);
+    }
+
+    static Entry readEntry(DataInputStream in, long previous) throws IOException {
+        long seq = in.readLong();
+        long time = in.readLong();
+        String user = in.readUTF();
+        String op = in.readUTF();
+        int amount = in.readInt();
+        int balance = in.readInt();
+        return new Entry(previous, seq, time, user, op, amount, balance, in.readUTF());
+    }
+
+    /** Writes what is queued, saves the heads and stops the writer. */
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        try {
+            writer.join(10000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        channel.close();
+    }
+
+    public static final class Entry {
+        final long previous;
+        public final long seq;
+        public final long time;
+        public final String user;
+        public final String op;
+        public final int amount;
+        public final int balance;
+        /** The other account of a transfer, otherwise empty. */
+        public final String counterparty;
+
+        Entry(long previous, long seq, long time, String user, String op, int amount, int balance,
+              String counterparty) {
+            this.previous = previous;
+            this.seq = seq;
+            this.time = time;
+            this.user = user;
+            this.op = op;
+            this.amount = amount;
+            this.balance = balance;
+            this.counterparty = counterparty;
+        }
+
+        Entry withSeq(long seq) {
+            return new Entry(previous, seq, time, user, op, amount, balance, counterparty);
+        }
+
+        /** {@code time;OP;amount;balance[;counterparty]} */
+        public String toText() {
+            String text = time + ";" + op + ";" + amount + ";" + balance;
+            return counterparty.isEmpty() ? text : text + ";" + counterparty;
+        }
+    }
+
+    public static final class Page {
+        public final List<Entry> entries;
+        /** Cursor of the next, older page, or -1 if the history ends here. */
+        public final long next;
+
+        Page(List<Entry> entries, long next) {
+            this.entries = entries;
+            this.next = next;
+        }
+    }
+}
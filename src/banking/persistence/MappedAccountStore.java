@@ -0,0 +1,375 @@
+package banking.persistence;
+
+import banking.model.Account;
+import banking.util.SecurityUtil;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.function.LongConsumer;
+
+/**
+ * Account store backed by a memory-mapped file of fixed-size records.
+ *
+ * The file is itself an open-addressing hash table (linear probing) keyed by
+ * username, so no index is kept on the heap and opening the store only maps
+ * the file. Balance updates are written in place.
+ *
+ * Layout: a 4 KB header (magic, version, capacity, count, table offset,
+ * clean flag, checkpointed journal segment) and a table of {@code capacity} slots of {@value #SLOT_SIZE} bytes:
+ * [used 1][name length 1][name 54][balance 8][pin hash 32].
+ *
+ * Growing builds the doubled table at the end of the same file and then
+ * switches the header to it, so the file is never renamed while mapped
+ * (which Windows does not allow). The old table is left as dead space.
+ */
+public class MappedAccountStore implements AccountStore {
+
+    private static final int MAGIC = 0x424B4143; // "BKAC"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 4096;
+
+    private static final int H_CAPACITY = 8;
+    private static final int H_COUNT = 16;
+    private static final int H_TABLE = 24;
+    private static final int H_CLEAN = 32;
+    private static final int H_CHECKPOINT = 40;
+
+    static final int SLOT_SIZE = 96;
+    private static final int NAME_LEN_OFFSET = 1;
+    private static final int NAME_OFFSET = 2;
+    public static final int MAX_NAME_BYTES = 54;
+    private static final int BALANCE_OFFSET = 56;
+    private static final int HASH_OFFSET = 64;
+    private static final int HASH_BYTES = SecurityUtil.HASH_BYTES;
+
+    /** Slots per mapped segment; a single mapping is limited to 2 GB. */
+    private static final int SEGMENT_SHIFT = 20;
+    private static final int SEGMENT_SLOTS = 1 << SEGMENT_SHIFT;
+
+    private static final long INITIAL_CAPACITY = 1 << 12;
+    private static final double MAX_LOAD = 0.7;
+
+    private final File file;
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private FileChannel channel;
+    private MappedByteBuffer header;
+    private MappedByteBuffer[] segments;
+    private long capacity;
+    private long count;
+
+    public MappedAccountStore(File file) {
+        this.file = file;
+    }
+
+    /* ---------------- OPEN / MAP ---------------- */
+
+    @Override
+    public void load() throws IOException {
+        boolean fresh = !file.exists() || file.length() < HEADER_SIZE;
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+
+        if (fresh) {
+            header.putInt(0, MAGIC);
+            header.putInt(4, VERSION);
+            header.putLong(H_CAPACITY, INITIAL_CAPACITY);
+            header.putLong(H_COUNT, 0);
+            header.putLong(H_TABLE, HEADER_SIZE);
+            extend(HEADER_SIZE, INITIAL_CAPACITY);
+        } else if (header.getInt(0) != MAGIC || header.getInt(4) != VERSION) {
+            throw new IOException("Not an account store: " + file);
+        }
+
+        capacity = header.getLong(H_CAPACITY);
+        segments = map(header.getLong(H_TABLE), capacity);
+
+        if (fresh || header.get(H_CLEAN) == 1) {
+            count = header.getLong(H_COUNT);
+        } else {
+            // not closed cleanly: the header page may be older than the slots
+            count = 0;
+            forEachSlot(slot -> count++);
+            header.putLong(H_COUNT, count);
+        }
+        header.put(H_CLEAN, (byte) 0);
+        header.force();
+
+        System.out.println("Bank: mapped " + count + " accounts (" + capacity + " slots)");
+    }
+
+    /** Makes sure the file covers a table of the given capacity; new regions read as zero. */
+    private void extend(long offset, long slots) throws IOException {
+        long end = offset + slots * SLOT_SIZE;
+        if (channel.size() < end) {
+            channel.write(ByteBuffer.wrap(new byte[1]), end - 1);
+        }
+    }
+
+    private MappedByteBuffer[] map(long offset, long slots) throws IOException {
+        int n = (int) ((slots + SEGMENT_SLOTS - 1) >> SEGMENT_SHIFT);
+        MappedByteBuffer[] mapped = new MappedByteBuffer[n];
+        for (int i = 0; i < n; i++) {
+            long size = Math.min(SEGMENT_SLOTS, slots - ((long) i << SEGMENT_SHIFT));
+            mapped[i] = channel.map(FileChannel.MapMode.READ_WRITE,
+                    offset + ((long) i << SEGMENT_SHIFT) * SLOT_SIZE, size * SLOT_SIZE);
+        }
+        return mapped;
+    }
+
+    /* ---------------- SLOT ACCESS ---------------- */
+
+    private MappedByteBuffer segment(long slot) {
+        return segments[(int) (slot >>> SEGMENT_SHIFT)];
+    }
+
+    private static int offset(long slot) {
+        return (int) (slot & (SEGMENT_SLOTS - 1)) * SLOT_SIZE;
+    }
+
+    private void forEachSlot(LongConsumer action) {
+        for (long slot = 0; slot < capacity; slot++) {
+            if (segment(slot).get(offset(slot)) != 0) {
+                action.accept(slot);
+            }
+        }
+    }
+
+    private static long hash(byte[] key) {
+        long h = 0xcbf29ce484222325L; // FNV-1a
+        for (byte b : key) {
+            h ^= (b & 0xff);
+            h *= 0x100000001b3L;
+        }
+        return h;
+    }
+
+    /** @return the slot holding the key, or -(free slot) - 1 if absent */
+    private long find(byte[] key) {
+        return find(segments, capacity, key);
+    }
+
+    private static long find(MappedByteBuffer[] table, long capacity, byte[] key) {
+        long mask = capacity - 1;
+        long slot = hash(key) & mask;
+        while (true) {
+            MappedByteBuffer seg = table[(int) (slot >>> SEGMENT_SHIFT)];
+            int off = offset(slot);
+            if (seg.get(off) == 0) {
+                return -slot - 1;
+            }
+            if (matches(seg, off, key)) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    private static boolean matches(MappedByteBuffer seg, int off, byte[] key) {
+        if ((seg.get(off + NAME_LEN_OFFSET) & 0xff) != key.length) {
+            return false;
+        }
+        for (int i = 0; i < key.length; i++) {
+            if (seg.get(off + NAME_OFFSET + i) != key[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static byte[] key(String user) {
+        byte[] key = user.getBytes(StandardCharsets.UTF_8);
+        if (key.length > MAX_NAME_BYTES) {
+            throw new IllegalArgumentException("Username longer than " + MAX_NAME_BYTES + " bytes");
+        }
+        return key;
+    }
+
+    private static Account read(MappedByteBuffer seg, int off) {
+        int len = seg.get(off + NAME_LEN_OFFSET) & 0xff;
+        byte[] name = new byte[len];
+        for (int i = 0; i < len; i++) {
+            name[i] = seg.get(off + NAME_OFFSET + i);
+        }
+        byte[] pinHash = new byte[HASH_BYTES];
+        for (int i = 0; i < HASH_BYTES; i++) {
+            pinHash[i] = seg.get(off + HASH_OFFSET + i);
+        }
+        return new Account(new String(name, StandardCharsets.UTF_8),
+                pinHash, (int) seg.getLong(off + BALANCE_OFFSET));
+    }
+
+    private static void write(MappedByteBuffer seg, int off, byte[] key, byte[] pinHash, long balance) {
+        seg.put(off + NAME_LEN_OFFSET, (byte) key.length);
+        for (int i = 0; i < key.length; i++) {
+            seg.put(off + NAME_OFFSET + i, key[i]);
+        }
+        for (int i = 0; i < HASH_BYTES; i++) {
+            seg.put(off + HASH_OFFSET + i, pinHash[i]);
+        }
+        seg.putLong(off + BALANCE_OFFSET, balance);
+        seg.put(off, (byte) 1);
+    }
+
+    /* ---------------- ACCOUNT STORE ---------------- */
+
+    @Override
+    public Account get(String user) {
+        byte[] key = key(user);
+        lock.readLock().lock();
+        try {
+            long slot = find(key);
+            return slot < 0 ? null : read(segment(slot), offset(slot));
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public boolean create(Account acc) {
+        byte[] key = key(acc.getUsername());
+        lock.writeLock().lock();
+        try {
+            if (count + 1 > capacity * MAX_LOAD) {
+                grow();
+            }
+            long slot = find(key);
+            if (slot >= 0) {
+                return false;
+            }
+            slot = -slot - 1;
+            write(segment(slot), offset(slot), key, acc.getPinDigest(), acc.getBalance());
+            header.putLong(H_COUNT, ++count);
+            return true;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Account store cannot grow", e);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void update(Account acc) {
+        byte[] key = key(acc.getUsername());
+        // Callers serialize updates per account, so a shared lock is enough here.
+        lock.readLock().lock();
+        try {
+            long slot = find(key);
+            if (slot >= 0) {
+                segment(slot).putLong(offset(slot) + BALANCE_OFFSET, acc.getBalance());
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public int size() {
+        return (int) count;
+    }
+
+    @Override
+    public void forEach(Consumer<Account> action) {
+        lock.readLock().lock();
+        try {
+            forEachSlot(slot -> action.accept(read(segment(slot), offset(slot))));
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /** Rehashes every record into a table twice as large. Caller holds the write lock. */
+    private void grow() throws IOException {
+        long nextCapacity = capacity * 2;
+        long nextOffset = (channel.size() + HEADER_SIZE - 1) / HEADER_SIZE * HEADER_SIZE;
+        extend(nextOffset, nextCapacity);
+        MappedByteBuffer[] next = map(nextOffset, nextCapacity);
+
+        byte[] pinHash = new byte[HASH_BYTES];
+        for (long slot = 0; slot < capacity; slot++) {
+            MappedByteBuffer seg = segment(slot);
+            int off = offset(slot);
+            if (seg.get(off) == 0) {
+                continue;
+            }
+            byte[] key = new byte[seg.get(off + NAME_LEN_OFFSET) & 0xff];
+            for (int i = 0; i < key.length; i++) {
+                key[i] = seg.get(off + NAME_OFFSET + i);
+            }
+            for (int i = 0; i < HASH_BYTES; i++) {
+                pinHash[i] = seg.get(off + HASH_OFFSET + i);
+            }
+            long free = -find(next, nextCapacity, key) - 1;
+            write(next[(int) (free >>> SEGMENT_SHIFT)], offset(free), key, pinHash,
+                    seg.getLong(off + BALANCE_OFFSET));
+        }
+        for (MappedByteBuffer seg : next) {
+            seg.force();
+        }
+
+        // switch the header only once the new table is on disk
+        header.putLong(H_TABLE, nextOffset);
+        header.putLong(H_CAPACITY, nextCapacity);
+        header.force();
+
+        segments = next;
+        capacity = nextCapacity;
+        System.out.println("Bank: account store grown to " + capacity + " slots");
+    }
+
+    /* ---------------- DURABILITY ---------------- */
+
+    @Override
+    public long checkpointSegment() {
+        return header.getLong(H_CHECKPOINT);
+    }
+
+    /**
+     * Records are updated in place, so a checkpoint only forces the dirty
+     * pages of the mapping; the OS writes back nothing else.
+     */
+    @Override
+    public Checkpoint capture(long segment) {
+        return () -> {
+            lock.readLock().lock();
+            try {
+                for (MappedByteBuffer seg : segments) {
+                    seg.force();
+                }
+                header.putLong(H_CHECKPOINT, segment);
+                header.force();
+            } finally {
+                lock.readLock().unlock();
+            }
+        };
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (channel == null) {
+            return;
+        }
+        lock.writeLock().lock();
+        try {
+            for (MappedByteBuffer seg : segments) {
+                seg.force();
+            }
+            header.put(H_CLEAN, (byte) 1);
+            header.force();
+            channel.close();
+            channel = null;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+}
@@ -0,0 +1,213 @@
+package banking.persistence;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Ids of the stand-in entries posted in the last {@code ttlMs}, so an entry an
+ * ATM sends again within that time (after a lost reply, a restart of either
+ * side) is never posted twice. The TTL must cover the longest an ATM may keep
+ * resending an entry, including while it is down with entries queued.
+ *
+ * An id is first durable in the journal, in the POST record of its balance
+ * change, and is replayed from there. Before a checkpoint deletes journal
+ * segments, the ids posted in them are appended to this file.
+ * Record: [long postedAtMillis][UTF id]. Expired ids are dropped from memory
+ * at every {@link #persist}, and from the file by rewriting it, through a
+ * temporary file, once they make up most of it or after a failed append.
+ */
+public class PostedEntries implements Closeable {
+
+    private static final int MIN_COMPACT = 10000;
+
+    private final File file;
+    private final long ttlMs;
+    /** Posting time by id. */
+    private final Map<String, Long> ids = new ConcurrentHashMap<>();
+    /** Ids added since the last {@link #cut()}, i.e. only in the current journal segment. */
+    private final List<String> pending = new ArrayList<>();
+    private FileChannel channel;
+    /** Records in the file, expired ones included. */
+    private int fileRecords;
+    /** Set when a failed append could not be cut off the file; the next persist rewrites it. */
+    private boolean damaged;
+
+    public PostedEntries(File file, long ttlMs) {
+        this.file = file;
+        this.ttlMs = ttlMs;
+    }
+
+    /** Reads the file, skipping expired ids; a torn record at the end (crash during a write) is truncated. */
+    public void load() throws IOException {
+        long valid = 0;
+        long oldest = System.currentTimeMillis() - ttlMs;
+        if (file.exists()) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+                while (true) {
+                    try {
+                        long postedAt = in.readLong();
+                        String id = in.readUTF();
+                        if (postedAt >= oldest) {
+                            ids.merge(id, postedAt, Math::max);
+                        }
+                        valid += 8 + 2 + utfLength(id);
+                        fileRecords++;
+                    } catch (EOFException | UTFDataFormatException e) {
+                        break;
+                    }
+                }
+            }
+        }
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        if (channel.size() > valid) {
+            System.out.println("PostedEntries: truncating torn tail at " + valid);
+            channel.truncate(valid);
+        }
+        channel.position(valid);
+    }
+
+    public boolean contains(String id) {
+        return ids.containsKey(id);
+    }
+
+    /** Called once the id is in the journal, or replayed from it. */
+    public void add(String id) {
+        if (ids.put(id, System.currentTimeMillis()) == null) {
+            synchronized (pending) {
+                pending.add(id);
+            }
+        }
+    }
+
+    public int size() {
+        return ids.size();
+    }
+
+    /**
+     * Called with the journal rotation, while nothing is posted.
+     *
+     * @return the ids posted in the segments the rotation completed
+     */
+    public List<String> cut() {
+        synchronized (pending) {
+            if (pending.isEmpty()) {
+                return Collections.emptyList();
+            }
+            List<String> cut = new ArrayList<>(pending);
+            pending.clear();
+            return cut;
+        }
+    }
+
+    /**
+     * Writes the ids of a {@link #cut()} to disk; the segments they came from
+     * may be deleted once this returns. If it fails they stay pending for the
+     * next checkpoint.
+     */
+    public void persist(List<String> cut) throws IOException {
+        long oldest = System.currentTimeMillis() - ttlMs;
+        ids.values().removeIf(postedAt -> postedAt < oldest);
+        try {
+            synchronized (this) {
+                if (damaged || fileRecords > Math.max(MIN_COMPACT, 2 * ids.size())) {
+                    compact(); // the live ids include the cut
+                } else {
+                    append(cut);
+                }
+            }
+        } catch (IOException e) {
+            synchronized (pending) {
+                pending.addAll(cut);
+            }
+            throw e;
+        }
+    }
+
+    private void append(List<String> cut) throws IOException {
+        if (cut.isEmpty()) {
+            return;
+        }
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(cut.size() * 40);
+        DataOutputStream out = new DataOutputStream(buffer);
+        int written = 0;
+        for (String id : cut) {
+            Long postedAt = ids.get(id);
+            if (postedAt != null) {
+                out.writeLong(postedAt);
+                out.writeUTF(id);
+                written++;
+            }
+        }
+        ByteBuffer bb = ByteBuffer.wrap(buffer.toByteArray());
+        long start = channel.position();
+        try {
+            while (bb.hasRemaining()) {
+                channel.write(bb);
+            }
+            channel.force(false);
+        } catch (IOException e) {
+            // a torn record would hide every id appended after it
+            try {
+                channel.truncate(start);
+                channel.position(start);
+            } catch (IOException again) {
+                e.addSuppressed(again);
+                damaged = true;
+            }
+            throw e;
+        }
+        fileRecords += written;
+    }
+
+    /** Rewrites the file with only the ids not expired, through a temporary file. */
+    private void compact() throws IOException {
+        damaged = true; // until the new file is in place
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(ids.size() * 40 + 16);
+        DataOutputStream out = new DataOutputStream(buffer);
+        int written = 0;
+        for (Map.Entry<String, Long> e : ids.entrySet()) {
+            out.writeLong(e.getValue());
+            out.writeUTF(e.getKey());
+            written++;
+        }
+        File tmp = new File(file.getPath() + ".tmp");
+        try (FileChannel ch = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer bb = ByteBuffer.wrap(buffer.toByteArray());
+            while (bb.hasRemaining()) {
+                ch.write(bb);
+            }
+            ch.force(true);
+        }
+        channel.close();
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        fileRecords = written;
+        damaged = false;
+    }
+
+    private static int utfLength(String s) {
+        int length = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            length += c >= 0x0001 && c <= 0x007F ? 1 : c > 0x07FF ? 3 : 2;
+        }
+        return length;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (channel != null) {
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package banking.persistence;
+
+import banking.protocol.StandIn;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ * An ATM's durable queue of stand-in transactions the bank has not posted yet.
+ *
+ * The file is an append-only log of lines: {@code +id;OP;user;amount} when a
+ * transaction is queued and {@code -id} once the bank has posted it. Every
+ * append is forced to disk before it returns, so an approved transaction
+ * survives a crash of the ATM. Opening the queue replays the log, ignoring a
+ * torn last line (its transaction was never confirmed to the user), and
+ * rewrites it with only the open transactions; the log is also rewritten
+ * once enough transactions were posted, or after a failed append.
+ */
+public class StandInQueue implements Closeable {
+
+    private static final int COMPACT_AFTER = 10000;
+
+    private final File file;
+    private final Map<String, StandIn.Entry> open = new LinkedHashMap<>();
+    private FileChannel channel;
+    private int postedSinceCompact;
+
+    public StandInQueue(File file) throws IOException {
+        this.file = file;
+        if (file.exists()) {
+            String log = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+            // only lines with their newline were completely written
+            int start = 0;
+            int end;
+            while ((end = log.indexOf('\n', start)) >= 0) {
+                replay(log.substring(start, end));
+                start = end + 1;
+            }
+        }
+        compact();
+    }
+
+    private void replay(String line) {
+        try {
+            if (line.startsWith("+")) {
+                StandIn.Entry e = StandIn.Entry.parseText(line.substring(1));
+                open.put(e.id, e);
+            } else if (line.startsWith("-")) {
+                open.remove(line.substring(1));
+            }
+        } catch (RuntimeException e) {
+            System.out.println("StandInQueue: skipping bad line in " + file + ": " + line);
+        }
+    }
+
+    /** Queues a transaction; it is on disk when this returns. */
+    public synchronized void add(StandIn.Entry e) throws IOException {
+        write("+" + e.toText() + "\n");
+        open.put(e.id, e);
+    }
+
+    /**
+     * Marks the transactions as posted by the bank.
+     *
+     * @return the entries that were still open
+     */
+    public synchronized List<StandIn.Entry> remove(Collection<String> ids) throws IOException {
+        List<StandIn.Entry> removed = new ArrayList<>(ids.size());
+        StringBuilder sb = new StringBuilder();
+        for (String id : ids) {
+            StandIn.Entry e = open.remove(id);
+            if (e != null) {
+                removed.add(e);
+                sb.append('-').append(id).append('\n');
+            }
+        }
+        if (removed.isEmpty()) {
+            return removed;
+        }
+        postedSinceCompact += removed.size();
+        if (open.isEmpty() || postedSinceCompact >= COMPACT_AFTER) {
+            compact();
+        } else {
+            write(sb.toString());
+        }
+        return removed;
+    }
+
+    /** @return the open transactions, oldest first */
+    public synchronized List<StandIn.Entry> pending() {
+        return new ArrayList<>(open.values());
+    }
+
+    public synchronized int size() {
+        return open.size();
+    }
+
+    private void write(String text) throws IOException {
+        ByteBuffer bb = ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8));
+        try {
+            while (bb.hasRemaining()) {
+                channel.write(bb);
+            }
+            channel.force(false);
+        } catch (IOException e) {
+            // a partial line would swallow the next append; rewrite the log without it
+            try {
+                compact();
+            } catch (IOException again) {
+                e.addSuppressed(again);
+            }
+            throw e;
+        }
+    }
+
+    /** Rewrites the log with only the open transactions, through a temporary file. */
+    private void compact() throws IOException {
+        if (channel != null) {
+            channel.close();
+        }
+        File tmp = new File(file.getPath() + ".tmp");
+        try (FileChannel out = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            StringBuilder sb = new StringBuilder();
+            for (StandIn.Entry e : open.values()) {
+                sb.append('+').append(e.toText()).append('\n');
+            }
+            ByteBuffer bb = ByteBuffer.wrap(sb.toString().getBytes(StandardCharsets.UTF_8));
+            while (bb.hasRemaining()) {
+                out.write(bb);
+            }
+            out.force(true);
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        postedSinceCompact = 0;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        channel.close();
+    }
+}
@@ -0,0 +1,670 @@
+package banking.persistence;
+
+import banking.util.SecurityUtil;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.function.LongConsumer;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only journal of bank operations.
+ *
+ * Every record holds the resulting account state (not a delta), so replaying
+ * a record twice gives the same result.
+ * On-disk format: [int length][byte type][payload][entries][int crc32].
+ * With a {@link Ledger} set, a record also carries the ledger entries of its
+ * change, numbered here in journal order: [byte count] then the entries; a
+ * record without them ends after the payload. The entries go to the ledger
+ * once their record is durable, so the ledger never shows an operation that
+ * a crash undid.
+ *
+ * The journal is split into numbered segments ({@code <base>.<n>}). A
+ * checkpoint rotates to a new segment and, once the account state is on
+ * disk, deletes the segments it covers.
+ *
+ * In group-commit mode appends are not forced individually: a flusher thread
+ * forces the channel once per batch (at most {@code maxBatch} records or
+ * {@code maxLatencyMs} after the first unflushed record) and then runs the
+ * callbacks registered with {@link #afterCommit(Runnable)}.
+ *
+ * A failed force is fatal: the kernel may have dropped the pages it could
+ * not write, so a later force that succeeds proves nothing about them. The
+ * journal then fails every pending callback and refuses further appends.
+ */
+public class TransactionJournal implements Closeable {
+
+    /** Account creation with a hex PIN hash, written by older versions; still replayed. */
+    public static final byte CREATE_HEX = 1;
+    public static final byte BALANCE = 2;
+    public static final byte CREATE = 3;
+    /** Both balances of a transfer, so it is replayed completely or not at all. */
+    public static final byte TRANSFER = 4;
+    /** The balance after a stand-in posting, with the ATM's id of the entry so it is posted once. */
+    public static final byte POST = 5;
+
+    private static final int MAX_RECORD = 64 * 1024;
+
+    public interface Handler {
+        void onCreate(String user, byte[] pinDigest, int balance);
+        void onBalance(String user, int balance);
+
+        /** The id of the stand-in entry whose balance was just passed to {@link #onBalance}. */
+        default void onPosted(String id) {
+        }
+
+        /** A ledger entry of the record just applied. */
+        default void onEntry(Ledger.Entry entry) {
+        }
+    }
+
+    private static final Ledger.Entry[] NO_ENTRIES = new Ledger.Entry[0];
+
+    private final File base;
+    private long segment;
+    private FileChannel channel;
+
+    private final ByteArrayOutputStream buffer = new ByteArrayOutputStream(128);
+    private final DataOutputStream out = new DataOutputStream(buffer);
+    private final CRC32 crc = new CRC32();
+
+    private final boolean groupCommit;
+    private final int maxBatch;
+    private final long maxLatencyMs;
+
+    private long appendedSeq;
+    private long durableSeq;
+    private long firstPendingAt;
+    private List<Waiter> waiters = new ArrayList<>();
+    private Thread flusher;
+    private volatile boolean closed;
+    /**
+     * Set once a force failed, or the segment may hold bytes that are not a
+     * complete record; appends are refused from then on.
+     */
+    private volatile IOException failed;
+    private volatile LongConsumer flushObserver = nanos -> { };
+    private volatile Consumer<byte[]> recordObserver = record -> { };
+    private Ledger ledger;
+    /** Seq of the last ledger entry numbered. */
+    private long entrySeq;
+    /** Ledger entries whose record is not durable yet, in seq order. */
+    private final ArrayDeque<PendingEntry> pendingEntries = new ArrayDeque<>();
+
+    /** Journal that forces every record to disk before the append returns. */
+    public TransactionJournal(File base) {
+        this.base = base;
+        this.groupCommit = false;
+        this.maxBatch = 1;
+        this.maxLatencyMs = 0;
+    }
+
+    /** Journal in group-commit mode. */
+    public TransactionJournal(File base, int maxBatch, long maxLatencyMs) {
+        this.base = base;
+        this.groupCommit = true;
+        this.maxBatch = Math.max(1, maxBatch);
+        this.maxLatencyMs = Math.max(0, maxLatencyMs);
+    }
+
+    /** Called with the duration in nanoseconds of every force of the journal to disk. */
+    public void setFlushObserver(LongConsumer observer) {
+        this.flushObserver = observer;
+    }
+
+    /**
+     * Called with every appended record, in journal order, while the journal
+     * is locked; it must not block. The record is not durable yet.
+     */
+    public void setRecordObserver(Consumer<byte[]> observer) {
+        this.recordObserver = observer;
+    }
+
+    /**
+     * Journals the ledger entries passed to the appends from now on, numbered
+     * after the ledger's last one, and queues them in the ledger once durable.
+     */
+    public synchronized void setLedger(Ledger ledger) {
+        this.ledger = ledger;
+        this.entrySeq = ledger.lastSeq();
+    }
+
+    /* ---------------- REPLAY ---------------- */
+
+    /**
+     * Replays every valid record of the segments numbered {@code fromSegment}
+     * or higher, in order, and opens the last one for appending. A torn record
+     * at the end (crash during a write) is truncated.
+     *
+     * @return number of replayed records
+     */
+    public int replay(long fromSegment, Handler handler) throws IOException {
+        // journal written before segmentation becomes segment 0
+        if (base.exists()) {
+            Files.move(base.toPath(), segmentFile(0).toPath());
+        }
+
+        List<Long> segments = listSegments();
+        int count = 0;
+        long validLength = 0;
+        segment = fromSegment;
+
+        for (long n : segments) {
+            if (n < fromSegment) {
+                continue;
+            }
+            segment = n;
+            validLength = 0;
+
+            try (DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(new FileInputStream(segmentFile(n))))) {
+
+                while (true) {
+                    int length;
+                    try {
+                        length = in.readInt();
+                    } catch (EOFException e) {
+                        break;
+                    }
+                    if (length <= 0 || length > MAX_RECORD) {
+                        break;
+                    }
+
+                    byte[] record = new byte[length];
+                    int stored;
+                    try {
+                        in.readFully(record);
+                        stored = in.readInt();
+                    } catch (EOFException e) {
+                        break;
+                    }
+
+                    crc.reset();
+                    crc.update(record, 0, record.length);
+                    if ((int) crc.getValue() != stored) {
+                        break;
+                    }
+
+                    decode(record, handler);
+                    validLength += 4 + length + 4;
+                    count++;
+                }
+            }
+        }
+
+        channel = FileChannel.open(segmentFile(segment).toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        if (channel.size() > validLength) {
+            System.out.println("Journal: truncating torn tail at " + validLength);
+            channel.truncate(validLength);
+        }
+        channel.position(validLength);
+
+        if (groupCommit) {
+            flusher = new Thread(this::flushLoop, "journal-flusher-" + base.getName());
+            flusher.setDaemon(true);
+            flusher.start();
+        }
+
+        return count;
+    }
+
+    private File segmentFile(long n) {
+        return new File(base.getPath() + "." + n);
+    }
+
+    private List<Long> listSegments() {
+        List<Long> segments = new ArrayList<>();
+        File dir = base.getAbsoluteFile().getParentFile();
+        String prefix = base.getName() + ".";
+        String[] names = dir.list();
+        if (names != null) {
+            for (String name : names) {
+                if (name.startsWith(prefix)) {
+                    try {
+                        segments.add(Long.parseLong(name.substring(prefix.length())));
+                    } catch (NumberFormatException ignored) {
+                        // not a segment
+                    }
+                }
+            }
+        }
+        Collections.sort(segments);
+        return segments;
+    }
+
+    /** Applies one record, as given to the record observer, to the handler. */
+    public static void decode(byte[] record, Handler handler) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+        byte type = in.readByte();
+        String user = in.readUTF();
+
+        switch (type) {
+            case CREATE_HEX:
+                handler.onCreate(user, SecurityUtil.fromHex(in.readUTF()), in.readInt());
+                break;
+            case CREATE:
+                byte[] pinDigest = new byte[in.readUnsignedByte()];
+                in.readFully(pinDigest);
+                handler.onCreate(user, pinDigest, in.readInt());
+                break;
+            case BALANCE:
+                handler.onBalance(user, in.readInt());
+                break;
+            case TRANSFER:
+                handler.onBalance(user, in.readInt());
+                handler.onBalance(in.readUTF(), in.readInt());
+                break;
+            case POST:
+                handler.onBalance(user, in.readInt());
+                handler.onPosted(in.readUTF());
+                break;
+            default:
+                throw new IOException("Unknown journal record type " + type);
+        }
+        if (in.available() > 0) {
+            for (int n = in.readUnsignedByte(); n > 0; n--) {
+                handler.onEntry(Ledger.readEntry(in, -1));
+            }
+        }
+    }
+
+    /* ---------------- APPEND ---------------- */
+
+    public synchronized void appendCreate(String user, byte[] pinDigest, int balance, Ledger.Entry... entries)
+            throws IOException {
+        buffer.reset();
+        buffer.write(createRecord(user, pinDigest, balance));
+        write(entries);
+    }
+
+    /** A CREATE record for an existing account, e.g. to copy it to a read replica. */
+    public static byte[] createRecord(String user, byte[] pinDigest, int balance) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        DataOutputStream data = new DataOutputStream(bytes);
+        try {
+            data.writeByte(CREATE);
+            data.writeUTF(user);
+            data.writeByte(pinDigest.length);
+            data.write(pinDigest);
+            data.writeInt(balance);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e); // a byte array stream does not fail
+        }
+        return bytes.toByteArray();
+    }
+
+    public synchronized void appendBalance(String user, int balance, Ledger.Entry... entries) throws IOException {
+        buffer.reset();
+        out.writeByte(BALANCE);
+        out.writeUTF(user);
+        out.writeInt(balance);
+        write(entries);
+    }
+
+    public synchronized void appendPost(String user, int balance, String entryId, Ledger.Entry... entries)
+            throws IOException {
+        buffer.reset();
+        out.writeByte(POST);
+        out.writeUTF(user);
+        out.writeInt(balance);
+        out.writeUTF(entryId);
+        write(entries);
+    }
+
+    public synchronized void appendTransfer(String from, int fromBalance, String to, int toBalance,
+                                            Ledger.Entry... entries) throws IOException {
+        buffer.reset();
+        out.writeByte(TRANSFER);
+        out.writeUTF(from);
+        out.writeInt(fromBalance);
+        out.writeUTF(to);
+        out.writeInt(toBalance);
+        write(entries);
+    }
+
+    /**
+     * Numbers ledger entries of a change that is not journaled, because a
+     * checkpoint makes it durable (an import), and queues them in the ledger
+     * after the entries of the records appended so far.
+     *
+     * @return the seq of the last one; the caller syncs the ledger to it before the checkpoint
+     */
+    public synchronized long appendToLedger(Ledger.Entry... entries) {
+        if (ledger == null) {
+            return entrySeq;
+        }
+        for (Ledger.Entry e : entries) {
+            pendingEntries.add(new PendingEntry(appendedSeq, e.withSeq(++entrySeq)));
+        }
+        releaseEntries();
+        return entrySeq;
+    }
+
+    /** Queues in the ledger the entries whose record is durable; called with the journal locked. */
+    private void releaseEntries() {
+        PendingEntry p;
+        while ((p = pendingEntries.peek()) != null && p.record <= durableSeq) {
+            pendingEntries.poll();
+            ledger.append(p.entry);
+        }
+    }
+
+    private static final class PendingEntry {
+        final long record;
+        final Ledger.Entry entry;
+
+        PendingEntry(long record, Ledger.Entry entry) {
+            this.record = record;
+            this.entry = entry;
+        }
+    }
+
+    private void write(Ledger.Entry[] entries) throws IOException {
+        if (failed != null) {
+            throw new IOException("Journal failed", failed);
+        }
+        Ledger.Entry[] numbered = NO_ENTRIES;
+        if (ledger != null && entries.length > 0) {
+            numbered = new Ledger.Entry[entries.length];
+            out.writeByte(entries.length);
+            for (int i = 0; i < entries.length; i++) {
+                numbered[i] = entries[i].withSeq(entrySeq + 1 + i);
+                Ledger.writeEntry(out, numbered[i]);
+            }
+        }
+        byte[] record = buffer.toByteArray();
+
+        crc.reset();
+        crc.update(record, 0, record.length);
+
+        ByteBuffer bb = ByteBuffer.allocate(4 + record.length + 4);
+        bb.putInt(record.length);
+        bb.put(record);
+        bb.putInt((int) crc.getValue());
+        bb.flip();
+
+        long start = channel.position();
+        try {
+            while (bb.hasRemaining()) {
+                channel.write(bb);
+            }
+        } catch (IOException e) {
+            discardFrom(start, e);
+            throw e;
+        }
+        // numbered only once written, so a failed write leaves no gap in the seqs
+        entrySeq += numbered.length;
+        recordObserver.accept(record);
+        for (Ledger.Entry e : numbered) {
+            pendingEntries.add(new PendingEntry(appendedSeq + 1, e));
+        }
+
+        if (!groupCommit) {
+            try {
+                force(channel);
+            } catch (IOException e) {
+                failed = e;
+                throw e;
+            }
+            durableSeq = ++appendedSeq;
+            releaseEntries();
+            return;
+        }
+
+        if (appendedSeq == durableSeq) {
+            firstPendingAt = System.currentTimeMillis();
+        }
+        appendedSeq++;
+        if (appendedSeq - durableSeq >= maxBatch) {
+            notifyAll();
+        }
+    }
+
+    /**
+     * Cuts a record that failed halfway off the segment: replay stops at the
+     * first bad record, so anything appended after it would be lost. If even
+     * that fails the journal refuses further appends.
+     */
+    private void discardFrom(long position, IOException cause) {
+        try {
+            channel.truncate(position);
+            channel.position(position);
+        } catch (IOException e) {
+            cause.addSuppressed(e);
+            failed = cause;
+            System.out.println("Journal: cannot discard a torn record, refusing appends");
+        }
+    }
+
+    /* ---------------- GROUP COMMIT ---------------- */
+
+    /**
+     * Runs the callback once every record appended so far is on disk.
+     * If nothing is pending the callback runs immediately on the caller's thread,
+     * otherwise it runs on the flusher thread after the batch is forced.
+     * Nothing runs if the journal fails first.
+     */
+    public void afterCommit(Runnable callback) {
+        afterCommit(callback, null);
+    }
+
+    /**
+     * Like {@link #afterCommit(Runnable)}, but runs {@code onFailure} instead
+     * if the journal fails before those records are on disk, or already has.
+     */
+    public void afterCommit(Runnable callback, Runnable onFailure) {
+        boolean durable;
+        synchronized (this) {
+            durable = failed == null;
+            if (durable && appendedSeq != durableSeq) {
+                waiters.add(new Waiter(callback, onFailure));
+                notifyAll();
+                return;
+            }
+        }
+        Runnable r = durable ? callback : onFailure;
+        if (r != null) {
+            r.run();
+        }
+    }
+
+    private static final class Waiter {
+        final Runnable callback;
+        final Runnable onFailure;
+
+        Waiter(Runnable callback, Runnable onFailure) {
+            this.callback = callback;
+            this.onFailure = onFailure;
+        }
+    }
+
+    /**
+     * Runs the callbacks of a batch. One that throws must not stop the others,
+     * nor end the flusher thread, which every later waiter depends on.
+     */
+    private static void run(List<Waiter> batch, boolean durable) {
+        for (Waiter w : batch) {
+            Runnable r = durable ? w.callback : w.onFailure;
+            if (r == null) {
+                continue;
+            }
+            try {
+                r.run();
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void flushLoop() {
+        while (!closed) {
+            List<Waiter> batch;
+            long target;
+            FileChannel ch;
+
+            synchronized (this) {
+                try {
+                    while (!closed && failed == null && appendedSeq == durableSeq) {
+                        wait();
+                    }
+                    long deadline = firstPendingAt + maxLatencyMs;
+                    long now;
+                    while (!closed && failed == null && appendedSeq - durableSeq < maxBatch
+                            && (now = System.currentTimeMillis()) < deadline) {
+                        wait(deadline - now);
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (closed || failed != null) {
+                    return;
+                }
+                target = appendedSeq;
+                batch = waiters;
+                waiters = new ArrayList<>();
+                ch = channel;
+            }
+
+            try {
+                force(ch);
+            } catch (ClosedChannelException e) {
+                // rotate() closed the segment, after forcing it itself
+                synchronized (this) {
+                    if (durableSeq < target) {
+                        batch.addAll(waiters);
+                        waiters = batch;
+                        continue;
+                    }
+                }
+            } catch (IOException e) {
+                batch.addAll(fail(e));
+                run(batch, false);
+                return;
+            }
+
+            synchronized (this) {
+                durableSeq = Math.max(durableSeq, target);
+                releaseEntries();
+            }
+            run(batch, true);
+        }
+    }
+
+    /**
+     * Marks the journal failed.
+     *
+     * @return the pending callbacks, for the caller to fail once it holds no lock
+     */
+    private synchronized List<Waiter> fail(IOException cause) {
+        if (failed == null) {
+            failed = cause;
+            cause.printStackTrace();
+            System.out.println("Journal: cannot force to disk, refusing appends");
+        }
+        List<Waiter> batch = waiters;
+        waiters = new ArrayList<>();
+        notifyAll();
+        return batch;
+    }
+
+    private void force(FileChannel ch) throws IOException {
+        long start = System.nanoTime();
+        ch.force(false);
+        flushObserver.accept(System.nanoTime() - start);
+    }
+
+    /**
+     * Forces everything appended so far and runs the callbacks registered
+     * before, with the journal failed their {@code onFailure}.
+     */
+    public void flush() throws IOException {
+        List<Waiter> batch;
+        try {
+            synchronized (this) {
+                forceAll();
+                batch = waiters;
+                waiters = new ArrayList<>();
+            }
+        } catch (IOException e) {
+            run(fail(e), false);
+            throw e;
+        }
+        run(batch, true);
+    }
+
+    /** Forces the current segment and marks everything appended durable; called with the journal locked. */
+    private void forceAll() throws IOException {
+        if (failed != null) {
+            throw new IOException("Journal failed", failed);
+        }
+        channel.force(false);
+        durableSeq = appendedSeq;
+        releaseEntries();
+    }
+
+    /* ---------------- MAINTENANCE ---------------- */
+
+    /**
+     * Forces the current segment and starts a new one.
+     *
+     * @return the number of the new segment; every earlier segment is complete
+     */
+    public long rotate() throws IOException {
+        List<Waiter> batch;
+        long next;
+        try {
+            synchronized (this) {
+                forceAll();
+                batch = waiters;
+                waiters = new ArrayList<>();
+
+                channel.close();
+                next = ++segment;
+                channel = FileChannel.open(segmentFile(next).toPath(),
+                        StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            }
+        } catch (IOException e) {
+            run(fail(e), false);
+            throw e;
+        }
+        run(batch, true);
+        return next;
+    }
+
+    /** Deletes the segments numbered below {@code n}, already covered by a checkpoint. */
+    public void deleteBefore(long n) {
+        for (long s : listSegments()) {
+            if (s < n && !segmentFile(s).delete()) {
+                System.out.println("Journal: cannot delete segment " + s);
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (channel == null) {
+            return;
+        }
+        try {
+            if (failed == null) {
+                flush();
+            }
+        } finally {
+            synchronized (this) {
+                closed = true;
+                notifyAll();
+            }
+            channel.close();
+        }
+    }
+}
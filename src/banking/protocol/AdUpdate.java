@@ -0,0 +1,41 @@
+package banking.protocol;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Ads pushed by the ad broker to its subscribers, sent as the ACL content
+ * object. A full update replaces the subscriber's ads; a delta applies only
+ * on top of {@link #base} and carries the ads added and removed since then.
+ */
+public final class AdUpdate implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    public final boolean full;
+    public final long base;
+    public final long version;
+    /** Ad id to text, in the order the ads were added. */
+    public final LinkedHashMap<Long, String> added;
+    public final ArrayList<Long> removed;
+
+    private AdUpdate(boolean full, long base, long version,
+                     Map<Long, String> added, List<Long> removed) {
+        this.full = full;
+        this.base = base;
+        this.version = version;
+        this.added = new LinkedHashMap<>(added);
+        this.removed = new ArrayList<>(removed);
+    }
+
+    public static AdUpdate full(long version, Map<Long, String> ads) {
+        return new AdUpdate(true, 0, version, ads, new ArrayList<>());
+    }
+
+    public static AdUpdate delta(long base, long version, Map<Long, String> added, List<Long> removed) {
+        return new AdUpdate(false, base, version, added, removed);
+    }
+}
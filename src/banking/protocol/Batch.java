@@ -0,0 +1,113 @@
+package banking.protocol;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Several bank requests, or their replies, in one ACL message. An ATM that
+ * has more than one request for a shard at once sends them as a single
+ * REQUEST with ontology {@link #ONTOLOGY}; the bank runs them in one pass and
+ * answers with one message holding a reply per request.
+ *
+ * Content (byte sequence): [int count, at least 1] then, per item, [UTF request id]
+ * [int length][frame]. A frame is a request or a reply in the
+ * {@link BinaryCodec} format or, for text-only ops, in the text format; a
+ * reply frame uses the format of its request.
+ */
+public final class Batch {
+
+    public static final String ONTOLOGY = "batch";
+
+    private static final int MAX_ITEMS = 1 << 16;
+
+    private Batch() {
+    }
+
+    public static final class Item {
+        /** The request id ({@link Wire#REQUEST_ID}) of the request, also carried by its reply. */
+        public final String id;
+        public final byte[] frame;
+
+        public Item(String id, byte[] frame) {
+            this.id = id;
+            this.frame = frame;
+        }
+
+        public static Item of(String id, Request r, boolean binary) {
+            return new Item(id, binary && BinaryCodec.canEncode(r)
+                    ? BinaryCodec.encode(r) : r.toText().getBytes(StandardCharsets.UTF_8));
+        }
+
+        public static Item of(String id, Response r, boolean binary) {
+            return new Item(id, binary
+                    ? BinaryCodec.encode(r) : r.toText().getBytes(StandardCharsets.UTF_8));
+        }
+
+        public boolean isBinary() {
+            return BinaryCodec.isBinary(frame);
+        }
+
+        public Request request() {
+            return isBinary()
+                    ? BinaryCodec.decodeRequest(frame)
+                    : Request.parseText(new String(frame, StandardCharsets.UTF_8));
+        }
+
+        public Response response() {
+            return isBinary()
+                    ? BinaryCodec.decodeResponse(frame)
+                    : Response.parseText(new String(frame, StandardCharsets.UTF_8));
+        }
+    }
+
+    public static byte[] encode(List<Item> items) {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(items.size() * 48);
+        DataOutputStream out = new DataOutputStream(buffer);
+        try {
+            out.writeInt(items.size());
+            for (Item item : items) {
+                out.writeUTF(item.id);
+                out.writeInt(item.frame.length);
+                out.write(item.frame);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e); // a byte array stream does not fail
+        }
+        return buffer.toByteArray();
+    }
+
+    /** @throws IllegalArgumentException if the content is not a valid batch */
+    public static List<Item> decode(byte[] content) {
+        if (content == null) {
+            throw new IllegalArgumentException("empty batch");
+        }
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(content));
+        try {
+            int count = in.readInt();
+            if (count < 1 || count > MAX_ITEMS) {
+                throw new IllegalArgumentException("bad batch size " + count);
+            }
+            List<Item> items = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                String id = in.readUTF();
+                int length = in.readInt();
+                if (length < 0 || length > in.available()) {
+                    throw new IllegalArgumentException("bad frame length " + length);
+                }
+                byte[] frame = new byte[length];
+                in.readFully(frame);
+                items.add(new Item(id, frame));
+            }
+            return items;
+        } catch (IOException e) {
+            throw new IllegalArgumentException("truncated batch", e);
+        }
+    }
+}
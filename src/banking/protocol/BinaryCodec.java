@@ -0,0 +1,181 @@
+package banking.protocol;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Compact binary encoding of {@link Request} and {@link Response}, carried as
+ * ACL byte-sequence content.
+ *
+ * Every frame starts with {@link #MAGIC} and {@link #VERSION}; a receiver that
+ * does not see the magic byte treats the content as the ';'-delimited text
+ * format. Operations and statuses are sent as one-byte codes, indexes into
+ * {@link #OPS} and {@link #STATUSES}; new codes may only be appended.
+ *
+ * Request:  [magic][version][op][user][pin][int amount][to, TRANSFER/STATEMENT only]
+ * Response: [magic][version][status][flags][int balance][token if flagged]
+ * Strings are [short length, -1 for null][UTF-8 bytes].
+ */
+public final class BinaryCodec {
+
+    public static final byte MAGIC = (byte) 0xB7;
+    public static final byte VERSION = 1;
+
+    private static final String[] OPS = {
+            null,
+            MessageTypes.CREATE,
+            MessageTypes.AUTH,
+            MessageTypes.DEPOSIT,
+            MessageTypes.WITHDRAW,
+            MessageTypes.TRANSFER,
+            MessageTypes.STATEMENT,
+            MessageTypes.BALANCE,
+    };
+
+    private static final String[] STATUSES = {
+            null,
+            MessageTypes.ACCOUNT_CREATED,
+            MessageTypes.ACCOUNT_EXISTS,
+            MessageTypes.AUTH_OK,
+            MessageTypes.AUTH_FAIL,
+            MessageTypes.DEPOSIT_OK,
+            MessageTypes.WITHDRAW_OK,
+            MessageTypes.INSUFFICIENT_FUNDS,
+            MessageTypes.UNKNOWN_OPERATION,
+            MessageTypes.WRONG_SHARD,
+            MessageTypes.ERROR,
+            MessageTypes.BUSY,
+            MessageTypes.OVERDRAWN,
+            MessageTypes.TRANSFER_OK,
+            MessageTypes.UNKNOWN_ACCOUNT,
+            MessageTypes.CROSS_SHARD,
+            MessageTypes.BALANCE_OK,
+            MessageTypes.STALE,
+            MessageTypes.BANK_SHUTDOWN_OK,
+            MessageTypes.OVER_LIMIT,
+    };
+
+    private static final byte FLAG_BALANCE = 1;
+    private static final byte FLAG_TOKEN = 2;
+
+    private BinaryCodec() {
+    }
+
+    public static boolean isBinary(byte[] data) {
+        return data != null && data.length >= 2 && data[0] == MAGIC;
+    }
+
+    /** @return true if the request can be sent in binary form (text-only ops cannot) */
+    public static boolean canEncode(Request r) {
+        return code(OPS, r.op) > 0;
+    }
+
+    /* ---------------- REQUEST ---------------- */
+
+    public static byte[] encode(Request r) {
+        byte[] user = utf8(r.user);
+        byte[] pin = utf8(r.pin);
+        byte[] to = utf8(r.to);
+        ByteBuffer bb = ByteBuffer.allocate(3 + strSize(user) + strSize(pin) + 4 + (to != null ? strSize(to) : 0));
+        bb.put(MAGIC).put(VERSION).put(code(OPS, r.op));
+        putStr(bb, user);
+        putStr(bb, pin);
+        bb.putInt(r.amount);
+        if (to != null) {
+            putStr(bb, to);
+        }
+        return bb.array();
+    }
+
+    public static Request decodeRequest(byte[] data) {
+        ByteBuffer bb = header(data);
+        String op = name(OPS, bb.get());
+        String user = getStr(bb);
+        String pin = getStr(bb);
+        int amount = bb.getInt();
+        String to = bb.hasRemaining() ? getStr(bb) : null;
+        return new Request(op != null ? op : MessageTypes.UNKNOWN_OPERATION, user, pin, amount, to);
+    }
+
+    /* ---------------- RESPONSE ---------------- */
+
+    public static byte[] encode(Response r) {
+        byte[] token = utf8(r.token);
+        ByteBuffer bb = ByteBuffer.allocate(8 + (token != null ? strSize(token) : 0));
+        bb.put(MAGIC).put(VERSION).put(code(STATUSES, r.status));
+        bb.put((byte) ((r.hasBalance ? FLAG_BALANCE : 0) | (token != null ? FLAG_TOKEN : 0)));
+        bb.putInt(r.balance);
+        if (token != null) {
+            putStr(bb, token);
+        }
+        return bb.array();
+    }
+
+    public static Response decodeResponse(byte[] data) {
+        ByteBuffer bb = header(data);
+        String status = name(STATUSES, bb.get());
+        if (status == null) {
+            status = MessageTypes.ERROR;
+        }
+        byte flags = bb.get();
+        int balance = bb.getInt();
+        if ((flags & FLAG_TOKEN) != 0) {
+            return Response.of(status, balance, getStr(bb));
+        }
+        return (flags & FLAG_BALANCE) != 0 ? Response.of(status, balance) : Response.of(status);
+    }
+
+    /* ---------------- HELPERS ---------------- */
+
+    private static ByteBuffer header(byte[] data) {
+        if (!isBinary(data)) {
+            throw new IllegalArgumentException("Not a binary bank frame");
+        }
+        if (data[1] != VERSION) {
+            throw new IllegalArgumentException("Unsupported protocol version " + data[1]);
+        }
+        ByteBuffer bb = ByteBuffer.wrap(data);
+        bb.position(2);
+        return bb;
+    }
+
+    private static byte code(String[] table, String name) {
+        for (int i = 1; i < table.length; i++) {
+            if (table[i].equals(name)) {
+                return (byte) i;
+            }
+        }
+        return 0;
+    }
+
+    private static String name(String[] table, byte code) {
+        return code > 0 && code < table.length ? table[code] : null;
+    }
+
+    private static byte[] utf8(String s) {
+        return s == null ? null : s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static int strSize(byte[] b) {
+        return 2 + (b == null ? 0 : b.length);
+    }
+
+    private static void putStr(ByteBuffer bb, byte[] b) {
+        if (b == null) {
+            bb.putShort((short) -1);
+        } else {
+            bb.putShort((short) b.length);
+            bb.put(b);
+        }
+    }
+
+    private static String getStr(ByteBuffer bb) {
+        int len = bb.getShort();
+        if (len < 0) {
+            return null;
+        }
+        String s = new String(bb.array(), bb.position(), len, StandardCharsets.UTF_8);
+        bb.position(bb.position() + len);
+        return s;
+    }
+}
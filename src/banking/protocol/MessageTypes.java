@@ -5,4 +5,51 @@ public class MessageTypes {
     public static final String AUTH = "AUTH";
     public static final String DEPOSIT = "DEPOSIT";
     public static final String WITHDRAW = "WITHDRAW";
+    /** Moves money between two accounts of the same shard: {@code TRANSFER;from;pin;amount;to}. */
+    public static final String TRANSFER = "TRANSFER";
+    /** One page of an account's history: {@code STATEMENT;user;pin;limit[;cursor]}, see {@link Statement}. */
+    public static final String STATEMENT = "STATEMENT";
+    /** Read-only balance check, {@code BALANCE;user;pin}; read replicas answer it too. */
+    public static final String BALANCE = "BALANCE";
+    public static final String SHUTDOWN = "SHUTDOWN";
+    /**
+     * Bulk import from a file on the bank's machine: {@code IMPORT;path}. Only
+     * from the agents listed in {@code bank.import.senders}; each shard imports
+     * just its own accounts, so it is sent to every shard.
+     */
+    public static final String IMPORT = "IMPORT";
+
+    /** Marks a session token sent in place of the PIN, e.g. {@code DEPOSIT;ana;@token;50}. */
+    public static final String TOKEN_PREFIX = "@";
+
+    // Reply statuses
+    public static final String ACCOUNT_CREATED = "ACCOUNT_CREATED";
+    public static final String ACCOUNT_EXISTS = "ACCOUNT_EXISTS";
+    public static final String AUTH_OK = "AUTH_OK";
+    public static final String AUTH_FAIL = "AUTH_FAIL";
+    public static final String DEPOSIT_OK = "DEPOSIT_OK";
+    public static final String WITHDRAW_OK = "WITHDRAW_OK";
+    public static final String INSUFFICIENT_FUNDS = "INSUFFICIENT_FUNDS";
+    /** Reply to TRANSFER with the sender's new balance. */
+    public static final String TRANSFER_OK = "TRANSFER_OK";
+    /** The account a TRANSFER credits does not exist. */
+    public static final String UNKNOWN_ACCOUNT = "UNKNOWN_ACCOUNT";
+    /** The two accounts of a TRANSFER live on different bank shards, so it cannot be atomic. */
+    public static final String CROSS_SHARD = "CROSS_SHARD";
+    public static final String BALANCE_OK = "BALANCE_OK";
+    /** A read replica has not heard from its primary recently enough; ask the primary. */
+    public static final String STALE = "STALE";
+    public static final String UNKNOWN_OPERATION = "UNKNOWN_OPERATION";
+    public static final String WRONG_SHARD = "WRONG_SHARD";
+    public static final String ERROR = "ERROR";
+    /** The bank is overloaded and did not run the request, e.g. {@code BUSY;200} = retry after 200 ms. */
+    public static final String BUSY = "BUSY";
+    /** A stand-in withdrawal was posted although it left the balance negative. */
+    public static final String OVERDRAWN = "OVERDRAWN";
+    /** Reply to IMPORT with the number of accounts created, e.g. {@code IMPORTED;1000000}. */
+    public static final String IMPORTED = "IMPORTED";
+    /** Reply to SHUTDOWN, sent once the bank has saved its data. */
+    public static final String BANK_SHUTDOWN_OK = "BANK_SHUTDOWN_OK";
+    /** A stand-in entry the bank does not post: its amount is not positive or above the floor limit. */
+    public static final String OVER_LIMIT = "OVER_LIMIT";
 }
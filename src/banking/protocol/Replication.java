@@ -0,0 +1,115 @@
+package banking.protocol;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Journal shipping from a bank shard to its read replicas.
+ *
+ * A replica sends SUBSCRIBE with ontology {@link #ONTOLOGY} to its primary,
+ * a CONFIRM every second to keep the subscription, and CANCEL when it stops.
+ * The primary answers with INFORM messages whose content (byte sequence) is
+ * [byte kind][long epoch][long seq][int count] then, per record,
+ * [int length][record]:
+ * <ul>
+ * <li>{@link #SNAPSHOT}: the accounts (journal CREATE records) as of the
+ * subscription, in several messages, then {@link #SNAPSHOT_END} with the seq
+ * the snapshot is current to;</li>
+ * <li>{@link #CHANGES}: the journal records since the previous seq, sent once
+ * they are durable;</li>
+ * <li>{@link #HEARTBEAT}: nothing has changed since seq.</li>
+ * </ul>
+ * The epoch changes when the primary restarts; a replica then subscribes
+ * again. A replica is current to a seq once it has applied every CHANGES
+ * up to it.
+ *
+ * The records carry PIN digests, so the primary ships only to agents
+ * registered as its replicas. Session tokens are not shipped: a replica
+ * answers a read with a token STALE and the client asks the primary.
+ */
+public final class Replication {
+
+    public static final String ONTOLOGY = "replication";
+
+    public static final byte SNAPSHOT = 1;
+    public static final byte SNAPSHOT_END = 2;
+    public static final byte CHANGES = 3;
+    public static final byte HEARTBEAT = 4;
+
+    private static final int MAX_RECORDS = 1 << 20;
+
+    private Replication() {
+    }
+
+    public static final class Message {
+        public final byte kind;
+        public final long epoch;
+        public final long seq;
+        public final List<byte[]> records;
+
+        public Message(byte kind, long epoch, long seq, List<byte[]> records) {
+            this.kind = kind;
+            this.epoch = epoch;
+            this.seq = seq;
+            this.records = records;
+        }
+    }
+
+    public static byte[] encode(byte kind, long epoch, long seq, List<byte[]> records) {
+        int size = 0;
+        for (byte[] record : records) {
+            size += 4 + record.length;
+        }
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(21 + size);
+        DataOutputStream out = new DataOutputStream(buffer);
+        try {
+            out.writeByte(kind);
+            out.writeLong(epoch);
+            out.writeLong(seq);
+            out.writeInt(records.size());
+            for (byte[] record : records) {
+                out.writeInt(record.length);
+                out.write(record);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e); // a byte array stream does not fail
+        }
+        return buffer.toByteArray();
+    }
+
+    /** @throws IllegalArgumentException if the content is not a valid replication message */
+    public static Message decode(byte[] content) {
+        if (content == null) {
+            throw new IllegalArgumentException("empty replication message");
+        }
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(content));
+        try {
+            byte kind = in.readByte();
+            long epoch = in.readLong();
+            long seq = in.readLong();
+            int count = in.readInt();
+            if (count < 0 || count > MAX_RECORDS) {
+                throw new IllegalArgumentException("bad record count " + count);
+            }
+            List<byte[]> records = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                int length = in.readInt();
+                if (length <= 0 || length > in.available()) {
+                    throw new IllegalArgumentException("bad record length " + length);
+                }
+                byte[] record = new byte[length];
+                in.readFully(record);
+                records.add(record);
+            }
+            return new Message(kind, epoch, seq, records);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("truncated replication message", e);
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package banking.protocol;
+
+/**
+ * A bank request, independent of its wire format.
+ * Text form: {@code OP;user;pin[;amount[;to]]}. After AUTH the PIN field may carry
+ * a session token instead, prefixed with {@link MessageTypes#TOKEN_PREFIX}.
+ * Only TRANSFER has a {@code to} field, the account credited; STATEMENT uses
+ * it for the cursor of the page to read.
+ */
+public final class Request {
+
+    public final String op;
+    public final String user;
+    public final String pin;
+    public final int amount;
+    /** The account credited by a TRANSFER, the page cursor of a STATEMENT, otherwise null. */
+    public final String to;
+
+    public Request(String op, String user, String pin, int amount) {
+        this(op, user, pin, amount, null);
+    }
+
+    public Request(String op, String user, String pin, int amount, String to) {
+        this.op = op;
+        this.user = user;
+        this.pin = pin;
+        this.amount = amount;
+        this.to = to;
+    }
+
+    /**
+     * Parses the ';'-delimited text form with indexOf, without a regex split.
+     *
+     * @throws IllegalArgumentException if the amount is not a number
+     */
+    public static Request parseText(String content) {
+        int p0 = content.indexOf(';');
+        if (p0 < 0) {
+            return new Request(content, null, null, 0);
+        }
+        int p1 = content.indexOf(';', p0 + 1);
+        int p2 = p1 < 0 ? -1 : content.indexOf(';', p1 + 1);
+
+        String op = content.substring(0, p0);
+        String user = p1 < 0 ? content.substring(p0 + 1) : content.substring(p0 + 1, p1);
+        String pin = p1 < 0 ? null : p2 < 0 ? content.substring(p1 + 1) : content.substring(p1 + 1, p2);
+        int amount = 0;
+        String to = null;
+        if (p2 >= 0) {
+            int end = content.indexOf(';', p2 + 1);
+            amount = Integer.parseInt(end < 0 ? content.substring(p2 + 1) : content.substring(p2 + 1, end));
+            if (end >= 0) {
+                int p4 = content.indexOf(';', end + 1);
+                to = p4 < 0 ? content.substring(end + 1) : content.substring(end + 1, p4);
+            }
+        }
+        return new Request(op, user, pin, amount, to);
+    }
+
+    public boolean hasToken() {
+        return pin != null && pin.startsWith(MessageTypes.TOKEN_PREFIX);
+    }
+
+    public String token() {
+        return pin.substring(MessageTypes.TOKEN_PREFIX.length());
+    }
+
+    public String toText() {
+        StringBuilder sb = new StringBuilder(op);
+        if (user != null) sb.append(';').append(user);
+        if (pin != null) sb.append(';').append(pin);
+        if (hasAmount(op)) sb.append(';').append(amount);
+        if (to != null) sb.append(';').append(to);
+        return sb.toString();
+    }
+
+    private static boolean hasAmount(String op) {
+        return MessageTypes.CREATE.equals(op)
+                || MessageTypes.DEPOSIT.equals(op)
+                || MessageTypes.WITHDRAW.equals(op)
+                || MessageTypes.TRANSFER.equals(op)
+                || MessageTypes.STATEMENT.equals(op);
+    }
+}
@@ -0,0 +1,58 @@
+package banking.protocol;
+
+/**
+ * A bank reply, independent of its wire format.
+ * Text form: {@code STATUS[;balance[;token]]}.
+ */
+public final class Response {
+
+    public final String status;
+    public final boolean hasBalance;
+    public final int balance;
+    /** Session token issued by AUTH, otherwise null. */
+    public final String token;
+
+    private Response(String status, boolean hasBalance, int balance, String token) {
+        this.status = status;
+        this.hasBalance = hasBalance;
+        this.balance = balance;
+        this.token = token;
+    }
+
+    public static Response of(String status) {
+        return new Response(status, false, 0, null);
+    }
+
+    public static Response of(String status, int balance) {
+        return new Response(status, true, balance, null);
+    }
+
+    public static Response of(String status, int balance, String token) {
+        return new Response(status, true, balance, token);
+    }
+
+    /** Overload rejection; the balance field carries the suggested retry delay in ms. */
+    public static Response busy(int retryMs) {
+        return of(MessageTypes.BUSY, retryMs);
+    }
+
+    public static Response parseText(String content) {
+        int p = content.indexOf(';');
+        if (p < 0) {
+            return of(content);
+        }
+        int t = content.indexOf(';', p + 1);
+        if (t < 0) {
+            return of(content.substring(0, p), Integer.parseInt(content.substring(p + 1)));
+        }
+        return of(content.substring(0, p), Integer.parseInt(content.substring(p + 1, t)),
+                content.substring(t + 1));
+    }
+
+    public String toText() {
+        if (!hasBalance) {
+            return status;
+        }
+        return token != null ? status + ";" + balance + ";" + token : status + ";" + balance;
+    }
+}
@@ -0,0 +1,99 @@
+package banking.protocol;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Transactions an ATM approved on its own (stand-in) and posts to the bank
+ * later, in batches. A batch is an ACL REQUEST with ontology {@link #ONTOLOGY}
+ * and one {@code id;OP;user;amount} line per transaction; the bank answers
+ * with one {@code id;STATUS;balance} line per transaction, or a single
+ * {@code BUSY;retryMs} if it did not look at the batch. The id is also the
+ * transaction's request id, so a batch sent twice is posted once.
+ */
+public final class StandIn {
+
+    public static final String ONTOLOGY = "standin";
+
+    private StandIn() {
+    }
+
+    public static final class Entry {
+        public final String id;
+        public final String op;
+        public final String user;
+        public final int amount;
+
+        public Entry(String id, String op, String user, int amount) {
+            this.id = id;
+            this.op = op;
+            this.user = user;
+            this.amount = amount;
+        }
+
+        /** @return the change to the balance: positive for a deposit, negative for a withdrawal */
+        public int delta() {
+            return MessageTypes.WITHDRAW.equals(op) ? -amount : amount;
+        }
+
+        public String toText() {
+            return id + ';' + op + ';' + user + ';' + amount;
+        }
+
+        /** @throws IllegalArgumentException if the line is malformed */
+        public static Entry parseText(String line) {
+            String[] f = line.split(";");
+            if (f.length != 4) {
+                throw new IllegalArgumentException("bad stand-in entry: " + line);
+            }
+            return new Entry(f[0], f[1], f[2], Integer.parseInt(f[3]));
+        }
+    }
+
+    public static final class Result {
+        public final String id;
+        public final Response response;
+
+        public Result(String id, Response response) {
+            this.id = id;
+            this.response = response;
+        }
+    }
+
+    public static String encodeEntries(List<Entry> entries) {
+        StringBuilder sb = new StringBuilder();
+        for (Entry e : entries) {
+            sb.append(e.toText()).append('\n');
+        }
+        return sb.toString();
+    }
+
+    public static List<Entry> decodeEntries(String content) {
+        List<Entry> entries = new ArrayList<>();
+        for (String line : content.split("\n")) {
+            if (!line.isEmpty()) {
+                entries.add(Entry.parseText(line));
+            }
+        }
+        return entries;
+    }
+
+    public static String encodeResults(List<Result> results) {
+        StringBuilder sb = new StringBuilder();
+        for (Result r : results) {
+            sb.append(r.id).append(';').append(r.response.toText()).append('\n');
+        }
+        return sb.toString();
+    }
+
+    public static List<Result> decodeResults(String content) {
+        List<Result> results = new ArrayList<>();
+        for (String line : content.split("\n")) {
+            int p = line.indexOf(';');
+            if (p > 0) {
+                results.add(new Result(line.substring(0, p), Response.parseText(line.substring(p + 1))));
+            }
+        }
+        return results;
+    }
+}
@@ -0,0 +1,37 @@
+package banking.protocol;
+
+import java.util.List;
+
+/**
+ * The reply to {@code STATEMENT;user;pin;limit[;cursor]}: one page of the
+ * account's history, newest first, streamed as several ACL messages with
+ * ontology {@link #ONTOLOGY} and the request's conversation id. Each message
+ * holds a header line and up to {@code bank.statement.chunkSize} entry lines
+ * {@code time;OP;amount;balance[;counterparty]}. The header is {@link #PART}
+ * on every message but the last, which has {@code STATEMENT_END;cursor}: the
+ * cursor of the next, older page, or nothing if the history ends there.
+ *
+ * A refused request (AUTH_FAIL, BUSY, ...) gets an ordinary single reply.
+ */
+public final class Statement {
+
+    public static final String ONTOLOGY = "statement";
+    public static final String PART = "STATEMENT";
+    public static final String END = "STATEMENT_END";
+
+    private Statement() {
+    }
+
+    /** @param next the cursor for the last chunk, -1 if there is no older page */
+    public static String chunk(List<String> lines, boolean last, long next) {
+        StringBuilder sb = new StringBuilder(last ? END + ";" + (next >= 0 ? Long.toString(next) : "") : PART);
+        for (String line : lines) {
+            sb.append('\n').append(line);
+        }
+        return sb.toString();
+    }
+
+    public static boolean isLast(String content) {
+        return content.startsWith(END);
+    }
+}
@@ -0,0 +1,60 @@
+package banking.protocol;
+
+import jade.lang.acl.ACLMessage;
+
+/**
+ * Reads and writes {@link Request}/{@link Response} on ACL messages in either
+ * the binary format (byte-sequence content) or the text fallback.
+ */
+public final class Wire {
+
+    /**
+     * ACL user-defined parameter with the client's id of a request. A retry
+     * reuses the id, and the bank answers it with the reply of the first attempt.
+     */
+    public static final String REQUEST_ID = "X-Request-Id";
+
+    private Wire() {
+    }
+
+    /** @return the client's request id, or null if the request has none */
+    public static String requestId(ACLMessage msg) {
+        return msg.getUserDefinedParameter(REQUEST_ID);
+    }
+
+    public static void setRequestId(ACLMessage msg, String id) {
+        msg.addUserDefinedParameter(REQUEST_ID, id);
+    }
+
+    public static boolean isBinary(ACLMessage msg) {
+        return msg.hasByteSequenceContent() && BinaryCodec.isBinary(msg.getByteSequenceContent());
+    }
+
+    public static Request readRequest(ACLMessage msg) {
+        return isBinary(msg)
+                ? BinaryCodec.decodeRequest(msg.getByteSequenceContent())
+                : Request.parseText(msg.getContent());
+    }
+
+    public static Response readResponse(ACLMessage msg) {
+        return isBinary(msg)
+                ? BinaryCodec.decodeResponse(msg.getByteSequenceContent())
+                : Response.parseText(msg.getContent());
+    }
+
+    public static void writeRequest(ACLMessage msg, Request r, boolean binary) {
+        if (binary && BinaryCodec.canEncode(r)) {
+            msg.setByteSequenceContent(BinaryCodec.encode(r));
+        } else {
+            msg.setContent(r.toText());
+        }
+    }
+
+    public static void writeResponse(ACLMessage msg, Response r, boolean binary) {
+        if (binary) {
+            msg.setByteSequenceContent(BinaryCodec.encode(r));
+        } else {
+            msg.setContent(r.toText());
+        }
+    }
+}
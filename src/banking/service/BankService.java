@@ -0,0 +1,311 @@
+package banking.service;
+
+import banking.model.Account;
+import banking.persistence.AccountStore;
+import banking.persistence.Ledger;
+import banking.persistence.PostedEntries;
+import banking.persistence.TransactionJournal;
+import banking.protocol.MessageTypes;
+import banking.protocol.Request;
+import banking.protocol.Response;
+import banking.protocol.StandIn;
+import banking.util.SecurityUtil;
+import banking.util.SessionTable;
+import banking.util.StripedLocks;
+
+import java.io.IOException;
+
+/**
+ * The bank operations, independent of JADE: {@code BankAgent} decodes
+ * messages, runs them here and sends the replies; benchmarks call it
+ * directly.
+ *
+ * The caller owns the store and the journal, and makes sure no checkpoint
+ * capture runs during {@link #execute}.
+ */
+public class BankService {
+
+    private static final int MAX_STATEMENT_PAGE = 1000;
+    private static final Ledger.Entry[] NO_ENTRIES = new Ledger.Entry[0];
+
+    private final AccountStore accounts;
+    private final TransactionJournal journal;
+    private final StripedLocks accountLocks = new StripedLocks(256);
+    /** History for statements; null if disabled. */
+    private Ledger ledger;
+    /** Stand-in entries already posted; null if not remembered past the reply cache. */
+    private PostedEntries posted;
+    /** The largest stand-in entry posted, the most an ATM may approve on its own. */
+    private int standInLimit = Integer.MAX_VALUE;
+
+    /** Tokens issued by AUTH; DEPOSIT/WITHDRAW may present one instead of the PIN. */
+    private final SessionTable sessions;
+
+    public BankService(AccountStore accounts, TransactionJournal journal, long sessionTtlMs) {
+        this.accounts = accounts;
+        this.journal = journal;
+        this.sessions = new SessionTable(sessionTtlMs);
+    }
+
+    /**
+     * Records every balance change in the ledger from now on; the journal
+     * must have the same ledger set, as the entries go through it.
+     */
+    public void setLedger(Ledger ledger) {
+        this.ledger = ledger;
+    }
+
+    /** Posts every stand-in entry at most once, see {@link #post}. */
+    public void setPostedEntries(PostedEntries posted) {
+        this.posted = posted;
+    }
+
+    /** Refuses stand-in entries above {@code limit} with OVER_LIMIT. */
+    public void setStandInLimit(int limit) {
+        this.standInLimit = limit;
+    }
+
+    public Response execute(Request req) throws IOException {
+        switch (req.op) {
+
+            case MessageTypes.CREATE:
+                return handleCreate(req);
+
+            case MessageTypes.AUTH:
+                return handleAuth(req);
+
+            case MessageTypes.DEPOSIT:
+                return handleDeposit(req);
+
+            case MessageTypes.WITHDRAW:
+                return handleWithdraw(req);
+
+            case MessageTypes.TRANSFER:
+                return handleTransfer(req);
+
+            case MessageTypes.BALANCE:
+                return handleBalance(req);
+
+            default:
+                return Response.of(MessageTypes.UNKNOWN_OPERATION);
+        }
+    }
+
+    /**
+     * Posts a transaction an ATM already approved in stand-in mode. The money
+     * has changed hands, so no PIN is checked and a withdrawal is posted even
+     * if it overdraws the account, which the OVERDRAWN status reports. The
+     * caller accepts entries from ATMs only; an amount that is not positive or
+     * above the stand-in limit is not one an ATM could have approved, and is
+     * refused with OVER_LIMIT.
+     * An entry posted before, e.g. sent again after a restart of the bank, is
+     * not posted again: it is answered with the current balance.
+     */
+    public Response post(StandIn.Entry e) throws IOException {
+        if (!MessageTypes.DEPOSIT.equals(e.op) && !MessageTypes.WITHDRAW.equals(e.op)) {
+            return Response.of(MessageTypes.UNKNOWN_OPERATION);
+        }
+        if (e.amount <= 0 || e.amount > standInLimit) {
+            return Response.of(MessageTypes.OVER_LIMIT);
+        }
+        synchronized (accountLocks.lockFor(e.user)) {
+            Account acc = accounts.get(e.user);
+            if (acc == null) {
+                return Response.of(MessageTypes.AUTH_FAIL);
+            }
+
+            if (posted != null && posted.contains(e.id)) {
+                return Response.of(MessageTypes.WITHDRAW.equals(e.op)
+                        ? MessageTypes.WITHDRAW_OK : MessageTypes.DEPOSIT_OK, acc.getBalance());
+            }
+
+            acc.setBalance(acc.getBalance() + e.delta());
+            accounts.update(acc);
+            journal.appendPost(e.user, acc.getBalance(), e.id,
+                    entries(e.user, e.op, e.delta(), acc.getBalance(), null));
+            if (posted != null) {
+                posted.add(e.id);
+            }
+
+            if (acc.getBalance() < 0) {
+                return Response.of(MessageTypes.OVERDRAWN, acc.getBalance());
+            }
+            return Response.of(MessageTypes.WITHDRAW.equals(e.op)
+                    ? MessageTypes.WITHDRAW_OK : MessageTypes.DEPOSIT_OK, acc.getBalance());
+        }
+    }
+
+    /**
+     * Reads a page of the account's history, up to {@code req.amount} entries
+     * older than the cursor in {@code req.to}. Only the access check takes the
+     * account's lock; the read itself runs without it.
+     *
+     * @return null if the request is not authorized
+     * @throws IllegalArgumentException if the cursor is malformed or not the account's
+     */
+    public Ledger.Page statement(Request req) throws IOException {
+        synchronized (accountLocks.lockFor(req.user)) {
+            Account acc = accounts.get(req.user);
+            if (acc == null || !authorized(req, acc)) {
+                return null;
+            }
+        }
+        long cursor = req.to != null && !req.to.isEmpty() ? Long.parseLong(req.to) : -1;
+        return ledger.read(req.user, cursor, Math.max(1, Math.min(req.amount, MAX_STATEMENT_PAGE)));
+    }
+
+    public boolean hasLedger() {
+        return ledger != null;
+    }
+
+    public void sweepSessions() {
+        sessions.sweep();
+    }
+
+    /*
+     * Handlers may run on several workers at once. Everything that reads or
+     * changes an account, including the PIN check (a per-thread digest, no
+     * allocation) and the journal append, happens under its stripe lock, so journal
+     * records of one account are in the same order as its balance changes.
+     */
+
+    private Response handleCreate(Request req) throws IOException {
+        String user = req.user;
+        int balance = req.amount;
+
+        byte[] pinDigest = SecurityUtil.hashPIN(req.pin);
+        synchronized (accountLocks.lockFor(user)) {
+            if (!accounts.create(new Account(user, pinDigest, balance))) {
+                return Response.of(MessageTypes.ACCOUNT_EXISTS);
+            }
+            journal.appendCreate(user, pinDigest, balance, entries(user, MessageTypes.CREATE, balance, balance, null));
+        }
+
+        return Response.of(MessageTypes.ACCOUNT_CREATED, balance);
+    }
+
+    private Response handleAuth(Request req) {
+        String user = req.user;
+
+        synchronized (accountLocks.lockFor(user)) {
+            Account acc = accounts.get(user);
+            if (acc == null || !SecurityUtil.verifyPIN(req.pin, acc.getPinDigest())) {
+                return Response.of(MessageTypes.AUTH_FAIL);
+            }
+
+            return Response.of(MessageTypes.AUTH_OK, acc.getBalance(), sessions.open(user));
+        }
+    }
+
+    /** Like AUTH without opening a session: changes nothing, so read replicas can answer it as well. */
+    private Response handleBalance(Request req) {
+        synchronized (accountLocks.lockFor(req.user)) {
+            Account acc = accounts.get(req.user);
+            if (acc == null || !authorized(req, acc)) {
+                return Response.of(MessageTypes.AUTH_FAIL);
+            }
+            return Response.of(MessageTypes.BALANCE_OK, acc.getBalance());
+        }
+    }
+
+    private Response handleDeposit(Request req) throws IOException {
+        String user = req.user;
+        int amount = req.amount;
+
+        synchronized (accountLocks.lockFor(user)) {
+            Account acc = accounts.get(user);
+            if (acc == null || !authorized(req, acc)) {
+                return Response.of(MessageTypes.AUTH_FAIL);
+            }
+
+            acc.deposit(amount);
+            accounts.update(acc);
+            journal.appendBalance(user, acc.getBalance(),
+                    entries(user, MessageTypes.DEPOSIT, amount, acc.getBalance(), null));
+
+            return Response.of(MessageTypes.DEPOSIT_OK, acc.getBalance());
+        }
+    }
+
+    private Response handleWithdraw(Request req) throws IOException {
+        String user = req.user;
+        int amount = req.amount;
+
+        synchronized (accountLocks.lockFor(user)) {
+            Account acc = accounts.get(user);
+            if (acc == null || !authorized(req, acc)) {
+                return Response.of(MessageTypes.AUTH_FAIL);
+            }
+
+            if (!acc.withdraw(amount)) {
+                return Response.of(MessageTypes.INSUFFICIENT_FUNDS, acc.getBalance());
+            }
+            accounts.update(acc);
+
+            journal.appendBalance(user, acc.getBalance(),
+                    entries(user, MessageTypes.WITHDRAW, -amount, acc.getBalance(), null));
+            return Response.of(MessageTypes.WITHDRAW_OK, acc.getBalance());
+        }
+    }
+
+    /**
+     * Holds the stripe locks of both accounts, taken in index order, so
+     * transfers run in parallel with each other and with single-account
+     * operations without deadlocking. Both balances go into one journal
+     * record: after a crash the transfer is either entirely there or not at all.
+     */
+    private Response handleTransfer(Request req) throws IOException {
+        String user = req.user;
+        String to = req.to;
+        int amount = req.amount;
+        if (to == null || to.equals(user) || amount <= 0) {
+            return Response.of(MessageTypes.ERROR);
+        }
+
+        int a = accountLocks.indexFor(user);
+        int b = accountLocks.indexFor(to);
+        synchronized (accountLocks.lock(Math.min(a, b))) {
+            synchronized (accountLocks.lock(Math.max(a, b))) {
+                Account from = accounts.get(user);
+                if (from == null || !authorized(req, from)) {
+                    return Response.of(MessageTypes.AUTH_FAIL);
+                }
+                Account target = accounts.get(to);
+                if (target == null) {
+                    return Response.of(MessageTypes.UNKNOWN_ACCOUNT);
+                }
+
+                if (!from.withdraw(amount)) {
+                    return Response.of(MessageTypes.INSUFFICIENT_FUNDS, from.getBalance());
+                }
+                target.deposit(amount);
+                accounts.update(from);
+                accounts.update(target);
+
+                Ledger.Entry[] entries = ledger == null ? NO_ENTRIES : new Ledger.Entry[]{
+                        Ledger.entry(user, MessageTypes.TRANSFER, -amount, from.getBalance(), to),
+                        Ledger.entry(to, MessageTypes.TRANSFER, amount, target.getBalance(), user)};
+                journal.appendTransfer(user, from.getBalance(), to, target.getBalance(), entries);
+                return Response.of(MessageTypes.TRANSFER_OK, from.getBalance());
+            }
+        }
+    }
+
+    /**
+     * The ledger entry of a balance change, journaled with it under the
+     * account's lock, so its entries are in the order of its balance changes.
+     */
+    private Ledger.Entry[] entries(String user, String op, int amount, int balance, String counterparty) {
+        return ledger == null
+                ? NO_ENTRIES
+                : new Ledger.Entry[]{Ledger.entry(user, op, amount, balance, counterparty)};
+    }
+
+    /** A session token is checked against the table, so no PIN hash is computed for it. */
+    private boolean authorized(Request req, Account acc) {
+        if (req.hasToken()) {
+            return sessions.validate(req.token(), req.user);
+        }
+        return SecurityUtil.verifyPIN(req.pin, acc.getPinDigest());
+    }
+}
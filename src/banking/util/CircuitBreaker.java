@@ -0,0 +1,43 @@
+package banking.util;
+
+/**
+ * Stops sending to an overloaded service for a while. Each overload signal
+ * opens the breaker for the service's retry hint, doubled for every further
+ * signal without a success in between (up to {@code maxOpenMs}). Signals
+ * while the breaker is open are ignored, they answer requests sent before it
+ * opened. Once the
+ * time is up requests flow again, and a success resets the backoff.
+ * Not thread-safe.
+ */
+public class CircuitBreaker {
+
+    private final long maxOpenMs;
+    private long openUntil;
+    private int overloads;
+
+    public CircuitBreaker(long maxOpenMs) {
+        this.maxOpenMs = maxOpenMs;
+    }
+
+    public boolean isOpen(long now) {
+        return now < openUntil;
+    }
+
+    /** @return when the breaker closes again, in {@link System#currentTimeMillis()} time */
+    public long openUntil() {
+        return openUntil;
+    }
+
+    public void onOverload(long now, long retryHintMs) {
+        if (isOpen(now)) {
+            return; // answers to requests sent before the breaker opened
+        }
+        overloads++;
+        long backoff = Math.min(maxOpenMs, Math.max(1, retryHintMs) << Math.min(overloads - 1, 16));
+        openUntil = Math.max(openUntil, now + backoff);
+    }
+
+    public void onSuccess() {
+        overloads = 0;
+    }
+}
@@ -0,0 +1,84 @@
+package banking.util;
+
+import java.util.Arrays;
+
+/**
+ * Log-linear histogram of latencies in microseconds, about 6% precision
+ * (16 sub-buckets per power of two) and a fixed 8 KB footprint whatever
+ * the number of samples. Not thread-safe.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BITS = 4;
+    private static final int SUB = 1 << SUB_BITS;
+    private static final int BUCKETS = SUB * 64;
+
+    private final long[] counts = new long[BUCKETS];
+    private long total;
+    private long max;
+
+    public void recordNanos(long nanos) {
+        record(Math.max(0, nanos / 1000));
+    }
+
+    public void record(long micros) {
+        counts[index(micros)]++;
+        total++;
+        if (micros > max) {
+            max = micros;
+        }
+    }
+
+    public void add(LatencyHistogram other) {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] += other.counts[i];
+        }
+        total += other.total;
+        max = Math.max(max, other.max);
+    }
+
+    public long count() {
+        return total;
+    }
+
+    public long max() {
+        return max;
+    }
+
+    /** @return the latency in microseconds below which {@code percentile}% of the samples fall */
+    public long percentile(double percentile) {
+        if (total == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(total * percentile / 100.0);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= Math.max(1, rank)) {
+                return Math.min(highestIn(i), max);
+            }
+        }
+        return max;
+    }
+
+    public void reset() {
+        Arrays.fill(counts, 0);
+        total = 0;
+        max = 0;
+    }
+
+    /*
+     * Values below 2*SUB have their own bucket; above that each power of two
+     * is split into SUB buckets: index = SUB * shift + (v >>> shift).
+     */
+    private static int index(long v) {
+        int shift = Math.max(0, 63 - Long.numberOfLeadingZeros(v) - SUB_BITS);
+        return SUB * shift + (int) (v >>> shift);
+    }
+
+    private static long highestIn(int index) {
+        int shift = index < 2 * SUB ? 0 : index / SUB - 1;
+        long lowest = (long) (index - SUB * shift) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+}
@@ -0,0 +1,106 @@
+package banking.util;
+
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Replies by request key (the client's request id, qualified by the caller
+ * as it sees fit), so a repeated request gets the original reply instead of
+ * running again. Entries are evicted oldest first once they are
+ * older than the TTL or the cache holds more than {@code maxEntries}, but
+ * only once they have a reply: an entry still running stays until it is
+ * completed or released, so neither a duplicate waiting on it nor a retry
+ * after it is left without the reply.
+ *
+ * A duplicate that arrives while the original is still running gets the
+ * original's future and completes with it.
+ */
+public class ReplyCache<V> {
+
+    private final int maxEntries;
+    private final long ttlMs;
+    private final Map<String, Entry<V>> entries = new ConcurrentHashMap<>();
+    /** Insertion order, for eviction. */
+    private final Queue<Entry<V>> order = new ConcurrentLinkedQueue<>();
+
+    public ReplyCache(int maxEntries, long ttlMs) {
+        this.maxEntries = Math.max(1, maxEntries);
+        this.ttlMs = ttlMs;
+    }
+
+    /**
+     * Claims the key for a new request.
+     *
+     * @return null if the key was not seen, and the caller must then
+     *         {@link #complete} or {@link #release} it; otherwise the reply of
+     *         the first request with this key
+     */
+    public CompletableFuture<V> claim(String id) {
+        long now = System.currentTimeMillis();
+        evict(now);
+        Entry<V> e = new Entry<>(id, now);
+        Entry<V> previous = entries.putIfAbsent(id, e);
+        if (previous != null) {
+            return previous.reply;
+        }
+        order.add(e);
+        return null;
+    }
+
+    public void complete(String id, V reply) {
+        Entry<V> e = entries.get(id);
+        if (e != null) {
+            e.reply.complete(reply);
+        }
+    }
+
+    /**
+     * Answers duplicates waiting on the id with {@code reply} but forgets the
+     * id, so the next request with it runs again; for replies that must not be
+     * repeated, such as a transient error.
+     */
+    public void release(String id, V reply) {
+        Entry<V> e = entries.remove(id);
+        if (e != null) {
+            e.reply.complete(reply);
+        }
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    private synchronized void evict(long now) {
+        Entry<V> oldest;
+        int pinned = 0;
+        int limit = -1;
+        while ((oldest = order.peek()) != null && pinned != limit
+                && (entries.size() > maxEntries || oldest.createdAt + ttlMs < now)) {
+            order.poll();
+            if (oldest.reply.isDone() || entries.get(oldest.id) != oldest) {
+                entries.remove(oldest.id, oldest);
+                continue;
+            }
+            // still running: goes to the back, and the scan stops once it has seen every entry
+            if (limit < 0) {
+                limit = order.size() + 1;
+            }
+            order.add(oldest);
+            pinned++;
+        }
+    }
+
+    private static class Entry<V> {
+        final String id;
+        final long createdAt;
+        final CompletableFuture<V> reply = new CompletableFuture<>();
+
+        Entry(String id, long createdAt) {
+            this.id = id;
+            this.createdAt = createdAt;
+        }
+    }
+}
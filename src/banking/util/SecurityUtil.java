@@ -1,22 +1,101 @@
 package banking.util;
 
+import java.nio.charset.StandardCharsets;
+import java.security.DigestException;
 import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 
+/**
+ * PIN hashing. Hashes are raw SHA-256 digests; every thread reuses its own
+ * digest and scratch buffers, so {@link #verifyPIN} allocates nothing for
+ * ASCII PINs.
+ */
 public class SecurityUtil {
 
-    public static String hashPIN(String pin) {
+    public static final int HASH_BYTES = 32;
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private static final ThreadLocal<MessageDigest> SHA256 = ThreadLocal.withInitial(() -> {
         try {
-            MessageDigest md = MessageDigest.getInstance("SHA-256");
-            byte[] hashBytes = md.digest(pin.getBytes("UTF-8"));
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException("Hashing error", e);
+        }
+    });
+
+    /** [0] holds the encoded PIN, [1] the computed digest. */
+    private static final ThreadLocal<byte[][]> SCRATCH =
+            ThreadLocal.withInitial(() -> new byte[][] { new byte[16], new byte[HASH_BYTES] });
+
+    public static byte[] hashPIN(String pin) {
+        MessageDigest md = SHA256.get();
+        md.reset();
+        return md.digest(pin.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /** Hashes the PIN and compares it with {@code expected} in constant time. */
+    public static boolean verifyPIN(String pin, byte[] expected) {
+        MessageDigest md = SHA256.get();
+        md.reset();
 
-            StringBuilder sb = new StringBuilder();
-            for (byte b : hashBytes) {
-                sb.append(String.format("%02x", b));
+        byte[][] scratch = SCRATCH.get();
+        int n = pin.length();
+        if (n <= scratch[0].length && isAscii(pin)) {
+            byte[] in = scratch[0];
+            for (int i = 0; i < n; i++) {
+                in[i] = (byte) pin.charAt(i);
             }
-            return sb.toString();
+            md.update(in, 0, n);
+        } else {
+            md.update(pin.getBytes(StandardCharsets.UTF_8));
+        }
 
-        } catch (Exception e) {
+        byte[] actual = scratch[1];
+        try {
+            md.digest(actual, 0, HASH_BYTES);
+        } catch (DigestException e) {
             throw new RuntimeException("Hashing error", e);
         }
+        return constantTimeEquals(actual, expected);
+    }
+
+    /** Compares every byte regardless of where the first difference is. */
+    public static boolean constantTimeEquals(byte[] a, byte[] b) {
+        if (a == null || b == null || a.length != b.length) {
+            return false;
+        }
+        int diff = 0;
+        for (int i = 0; i < a.length; i++) {
+            diff |= a[i] ^ b[i];
+        }
+        return diff == 0;
+    }
+
+    private static boolean isAscii(String s) {
+        for (int i = 0; i < s.length(); i++) {
+            if (s.charAt(i) >= 0x80) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public static String toHex(byte[] bytes) {
+        char[] out = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            out[i * 2] = HEX[(bytes[i] >> 4) & 0xf];
+            out[i * 2 + 1] = HEX[bytes[i] & 0xf];
+        }
+        return new String(out);
+    }
+
+    public static byte[] fromHex(String hex) {
+        byte[] out = new byte[hex.length() / 2];
+        for (int i = 0; i < out.length; i++) {
+            out[i] = (byte) ((Character.digit(hex.charAt(i * 2), 16) << 4)
+                    | Character.digit(hex.charAt(i * 2 + 1), 16));
+        }
+        return out;
     }
 }
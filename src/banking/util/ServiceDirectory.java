@@ -0,0 +1,166 @@
+package banking.util;
+
+import jade.core.AID;
+import jade.core.Agent;
+import jade.domain.DFService;
+import jade.domain.FIPAAgentManagement.*;
+import jade.domain.FIPAException;
+import jade.lang.acl.ACLMessage;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * An agent's copy of the DF registrations, kept current by a DF
+ * subscription, so looking up a service is a local read instead of a
+ * search round trip to the DF.
+ *
+ * {@link #subscribe()} asks the DF for every registration and for each one
+ * made, changed or removed later. The agent passes every message it
+ * receives to {@link #handle(ACLMessage)} first, which consumes the DF's
+ * notifications. Until the first notification has arrived (or if the agent
+ * never subscribes) {@link #search(String)} asks the DF directly.
+ *
+ * Updated on the agent thread; safe to read from any thread.
+ */
+public class ServiceDirectory {
+
+    public static final String CONVERSATION = "service-directory";
+
+    private final Agent agent;
+    /** Ordered by agent name, so lookups return the agents in a stable order. */
+    private final Map<AID, DFAgentDescription> registered = new ConcurrentSkipListMap<>();
+    private volatile boolean ready;
+    private volatile long version;
+    private ACLMessage subscription;
+
+    public ServiceDirectory(Agent agent) {
+        this.agent = agent;
+    }
+
+    /* ---------------- SUBSCRIPTION ---------------- */
+
+    public void subscribe() {
+        SearchConstraints all = new SearchConstraints();
+        all.setMaxResults(-1L);
+        subscription = DFService.createSubscriptionMessage(agent, agent.getDefaultDF(), new DFAgentDescription(), all);
+        subscription.setConversationId(CONVERSATION);
+        agent.send(subscription);
+    }
+
+    /** @return true if the message was a DF notification for the directory */
+    public boolean handle(ACLMessage msg) {
+        if (!CONVERSATION.equals(msg.getConversationId()) || !agent.getDefaultDF().equals(msg.getSender())) {
+            return false;
+        }
+        switch (msg.getPerformative()) {
+            case ACLMessage.INFORM:
+                try {
+                    apply(DFService.decodeNotification(msg.getContent()));
+                } catch (FIPAException e) {
+                    e.printStackTrace();
+                }
+                break;
+            case ACLMessage.REFUSE:
+            case ACLMessage.FAILURE:
+                System.out.println("ServiceDirectory: DF subscription of " + agent.getLocalName()
+                        + " failed, searching the DF instead");
+                ready = false;
+                break;
+            default:
+                break; // AGREE
+        }
+        return true;
+    }
+
+    /** A registration without services is a deregistration. */
+    private void apply(DFAgentDescription[] changes) {
+        for (DFAgentDescription dfd : changes) {
+            if (dfd.getAllServices().hasNext()) {
+                registered.put(dfd.getName(), dfd);
+            } else {
+                registered.remove(dfd.getName());
+            }
+        }
+        ready = true;
+        version++;
+    }
+
+    /** Cancels the subscription, e.g. from takeDown. */
+    public void close() {
+        if (subscription != null) {
+            agent.send(DFService.createCancelMessage(agent, agent.getDefaultDF(), subscription));
+            subscription = null;
+        }
+    }
+
+    /* ---------------- LOOKUP ---------------- */
+
+    /** @return the agents registered with a service of this type */
+    public List<DFAgentDescription> search(String type) {
+        if (!ready) {
+            return searchDF(type);
+        }
+        List<DFAgentDescription> found = new ArrayList<>();
+        for (DFAgentDescription dfd : registered.values()) {
+            if (offers(dfd, type)) {
+                found.add(dfd);
+            }
+        }
+        return found;
+    }
+
+    /** @return the first agent registered with a service of this type, or null */
+    public AID find(String type) {
+        List<DFAgentDescription> found = search(type);
+        return found.isEmpty() ? null : found.get(0).getName();
+    }
+
+    /** @return true if the agent is registered with a service of this type */
+    public boolean isRegistered(AID aid, String type) {
+        if (!ready) {
+            for (DFAgentDescription dfd : searchDF(type)) {
+                if (aid.equals(dfd.getName())) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        DFAgentDescription dfd = registered.get(aid);
+        return dfd != null && offers(dfd, type);
+    }
+
+    /** Changes whenever a registration does; lets callers cache what they derive from it. */
+    public long version() {
+        return version;
+    }
+
+    private static boolean offers(DFAgentDescription dfd, String type) {
+        Iterator<?> it = dfd.getAllServices();
+        while (it.hasNext()) {
+            if (type.equals(((ServiceDescription) it.next()).getType())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private List<DFAgentDescription> searchDF(String type) {
+        DFAgentDescription template = new DFAgentDescription();
+        ServiceDescription sd = new ServiceDescription();
+        sd.setType(type);
+        template.addServices(sd);
+        List<DFAgentDescription> found = new ArrayList<>();
+        try {
+            for (DFAgentDescription dfd : DFService.search(agent, template)) {
+                found.add(dfd);
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        return found;
+    }
+}
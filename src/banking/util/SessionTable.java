@@ -0,0 +1,71 @@
+package banking.util;
+
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Short-lived session tokens issued after a successful AUTH. Each use
+ * extends the session by the TTL; expired sessions are dropped by
+ * {@link #sweep()}.
+ */
+public class SessionTable {
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private final long ttlMs;
+    private final Map<String, Session> sessions = new ConcurrentHashMap<>();
+
+    public SessionTable(long ttlMs) {
+        this.ttlMs = ttlMs;
+    }
+
+    public String open(String user) {
+        byte[] bytes = new byte[16];
+        RANDOM.nextBytes(bytes);
+        String token = Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+        sessions.put(token, new Session(user, System.currentTimeMillis() + ttlMs));
+        return token;
+    }
+
+    /** @return true if the token is a live session of this user */
+    public boolean validate(String token, String user) {
+        Session s = sessions.get(token);
+        long now = System.currentTimeMillis();
+        if (s == null || s.expiresAt < now || !s.user.equals(user)) {
+            return false;
+        }
+        s.expiresAt = now + ttlMs;
+        return true;
+    }
+
+    public void close(String token) {
+        sessions.remove(token);
+    }
+
+    public void sweep() {
+        long now = System.currentTimeMillis();
+        Iterator<Session> it = sessions.values().iterator();
+        while (it.hasNext()) {
+            if (it.next().expiresAt < now) {
+                it.remove();
+            }
+        }
+    }
+
+    public int size() {
+        return sessions.size();
+    }
+
+    private static class Session {
+        final String user;
+        volatile long expiresAt;
+
+        Session(String user, long expiresAt) {
+            this.user = user;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package banking.util;
+
+/**
+ * A fixed set of monitors shared by key hash. Operations on the same key
+ * always use the same monitor, while different keys rarely contend.
+ */
+public class StripedLocks {
+
+    private final Object[] locks;
+    private final int mask;
+
+    /** @param stripes rounded up to a power of two */
+    public StripedLocks(int stripes) {
+        int size = Integer.highestOneBit(Math.max(1, stripes - 1)) << 1;
+        locks = new Object[size];
+        for (int i = 0; i < size; i++) {
+            locks[i] = new Object();
+        }
+        mask = size - 1;
+    }
+
+    public Object lockFor(String key) {
+        return locks[indexFor(key)];
+    }
+
+    /**
+     * Index of the key's monitor. Code that holds two monitors at once must
+     * take the lower index first; with one global order no two threads can
+     * wait on each other.
+     */
+    public int indexFor(String key) {
+        int h = key.hashCode();
+        return (h ^ (h >>> 16)) & mask;
+    }
+
+    public Object lock(int index) {
+        return locks[index];
+    }
+}
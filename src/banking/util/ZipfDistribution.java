@@ -0,0 +1,31 @@
+package banking.util;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Zipf-distributed ranks in [0, n): rank k is drawn with probability
+ * proportional to 1 / (k + 1)^s. The CDF is precomputed, so each draw is
+ * a binary search.
+ */
+public class ZipfDistribution {
+
+    private final double[] cdf;
+
+    public ZipfDistribution(int n, double s) {
+        cdf = new double[n];
+        double sum = 0;
+        for (int k = 0; k < n; k++) {
+            sum += 1.0 / Math.pow(k + 1, s);
+            cdf[k] = sum;
+        }
+        for (int k = 0; k < n; k++) {
+            cdf[k] /= sum;
+        }
+    }
+
+    public int next(Random random) {
+        int i = Arrays.binarySearch(cdf, random.nextDouble());
+        return Math.min(i < 0 ? -i - 1 : i, cdf.length - 1);
+    }
+}